@@ -1,3 +1,13 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
 class AES
 {
     /*
@@ -9,7 +19,7 @@ class AES
         That is for 0x--, Java interprets this as an integer that has the same hex value
         as --. For example: 0x0b is the integer value 62. Or 0xab has integer value 171.
      */
-    private static final int[][] sBox =
+    static final int[][] sBox =
             {
                     {0x63, 0x7c, 0x77, 0x7b, 0xf2, 0x6b, 0x6f, 0xc5, 0x30, 0x01,
                             0x67, 0x2b, 0xfe, 0xd7, 0xab, 0x76},
@@ -44,7 +54,7 @@ class AES
                     {0x8c, 0xa1, 0x89, 0x0d, 0xbf, 0xe6, 0x42, 0x68, 0x41, 0x99,
                             0x2d, 0x0f, 0xb0, 0x54, 0xbb, 0x16}
             };
-    private static final int[][] invSBox =
+    static final int[][] invSBox =
             {
                     {0x52, 0x09, 0x6a, 0xd5, 0x30, 0x36, 0xa5, 0x38, 0xbf, 0x40,
                             0xa3, 0x9e, 0x81, 0xf3, 0xd7, 0xfb},
@@ -441,6 +451,7 @@ class AES
         bit AES, this will be 11 roundKeys. Our keyExpansion method
         will create a 2-d array (with length 44) that we will break up into
         11 keys (each will be a 4 x 4 matrix or 2-d array).
+        192 and 256 bit keys give 13 and 15 round keys (52 and 60 words).
         The keyExpansion will use the methods rotWord and subWord.
         The rotWord method is just a left circular shift of an array
         by 1 index.
@@ -515,55 +526,41 @@ class AES
                     w_(j+2) = w_(j+1) xor w_(j-2)
                     w_(j+3) = w_(j+2) xor w_(j-1)
         Step 6: repeat steps 3-6 nine more times for a total of 10 times.
+        The same steps work for 192 and 256 bit keys (see section 5.2
+        of the NIST-AES document). The key has Nk words (4, 6 or 8) and
+        the cipher uses Nr = Nk + 6 rounds (10, 12 or 14), so there are
+        4*(Nr+1) words in total. Going one word at a time:
+            temp = w_(i-1)
+            if i is a multiple of Nk:   temp = subWord(rotWord(temp)) xor rCon[i/Nk - 1]
+            else if Nk = 8 and i mod 8 = 4:   temp = subWord(temp)
+            w_i = w_(i-Nk) xor temp
+        For Nk = 4 this is exactly steps 1-6 above.
      */
     private static int[][] keyExpansion(String key)
     {
         int[] keyTable = toHexArray(key);
         int[] rCon = {0x01, 0x02, 0x04, 0x08, 0x10, 0x20, 0x40, 0x80, 0x1B, 0x36};
-        int[][] rotWords = new int[10][4];
-        int[][] subWords = new int[10][4];
-        int[][] z = new int[10][4];
-        int[][] expandedKey = new int[44][4];
-        // Fill in the first 4 words from the given key.
-        for (int j = 0; j < keyTable.length; j+=4)
-        {
-            for(int i = 0; i < expandedKey[i].length; i++)
-            {
-                expandedKey[i+j/4][0] = keyTable[j];
-                expandedKey[i+j/4][1] = keyTable[j+1];
-                expandedKey[i+j/4][2] = keyTable[j+2];
-                expandedKey[i+j/4][3] = keyTable[j+3];
-            }
+        int nk = keyTable.length / 4;
+        int nr = nk + 6;
+        int[][] expandedKey = new int[4 * (nr + 1)][4];
+        // Fill in the first Nk words from the given key.
+        for (int j = 0; j < nk; j++)
+        {
+            for (int i = 0; i < 4; i++)
+                expandedKey[j][i] = keyTable[4 * j + i];
         }
 
-        // one way
-//        int[] temp;
-//        int Nk = 4;
-//        int i = Nk;
-//
-//        while (i < (4 * (10+1))) // Nb * (Nr+1)
-//        {
-//            temp = expandedKey[i-1];
-//            if (i % Nk == 0) {
-//                int[] rcons = {rCon[i/Nk-1], 0, 0, 0};
-//                temp = xor(subWord(rotWord(temp)), rcons);
-//            }
-//            expandedKey[i] = xor(expandedKey[i-Nk], temp);
-//            i++;
-//        }
-
-        // another way
-        for (int i = 0; i < 10; i++)
-        {
-            rotWords[i] = rotWord(expandedKey[4*i+3]);
-            subWords[i] = subWord(rotWords[i]);
-            int[] rcons = {rCon[i], 0, 0, 0};
-            z[i] = xor(subWords[i], rcons);
-            int j = 4*(i+1);
-            expandedKey[j] = xor(expandedKey[j-4], z[i]);
-            expandedKey[j+1] = xor(expandedKey[j], expandedKey[j-3]);
-            expandedKey[j+2] = xor(expandedKey[j+1], expandedKey[j-2]);
-            expandedKey[j+3] = xor(expandedKey[j+2], expandedKey[j-1]);
+        for (int i = nk; i < expandedKey.length; i++)
+        {
+            int[] temp = expandedKey[i-1];
+            if (i % nk == 0)
+            {
+                int[] rcons = {rCon[i/nk-1], 0, 0, 0};
+                temp = xor(subWord(rotWord(temp)), rcons);
+            }
+            else if (nk > 6 && i % nk == 4)
+                temp = subWord(temp);
+            expandedKey[i] = xor(expandedKey[i-nk], temp);
         }
 
         return expandedKey;
@@ -606,11 +603,12 @@ class AES
     // that contains all roundKeys (each roundKey
     // is a 2-d array). Each round key is a
     // 4 x 4 matrix. There is a total of 11
-    // round keys.
-    private static int[][][] getRoundKeys(String key)
+    // round keys for a 128-bit key (13 for 192
+    // bits and 15 for 256 bits).
+    static int[][][] getRoundKeys(String key)
     {
         int[][] expandedKey = keyExpansion(key);
-        int[][][] roundKeys = new int[11][4][4];
+        int[][][] roundKeys = new int[expandedKey.length / 4][4][4];
         for (int i = 0; i < expandedKey.length; i+=4)
         {
             for (int j = 0; j < 4; j++)
@@ -639,54 +637,18 @@ class AES
     // The toHexBlocks method creates an array of 128-bit
     // hex blocks. A message is read into the method and
     // broken up into 128-bit blocks and stored in an array.
+    // The front of the message is filled in with '0's up to a whole
+    // number of blocks (all at once, not one '0' at a time).
     private static String[] toHexBlocks(String message)
     {
-        while (message.length() % 32 != 0)
-            message = new StringBuilder().append('0').append(message).toString();
+        int fill = -message.length() & 31;
+        if (fill != 0)
+            message = "0".repeat(fill) + message;
         String[] messageBlocks = new String[message.length() / 32];
         for (int i = 0; i < message.length(); i+=32)
             messageBlocks[i / 32] = message.substring(i, i + 32);
         return messageBlocks;
     }
-    /*
-        This method simplifies the conversion back to ascii
-        step in the decrypt method below. It reads in a string
-        (in hex form) and converts the array into a string of their ascii values.
-     */
-    private static String hexToText(String hexMessage)
-    {
-        StringBuilder message = new StringBuilder();
-        for (int i = 0; i < hexMessage.length(); i+=2)
-        {
-            String s = hexMessage.substring(i,i+2);
-            message.append((char) Integer.parseInt(s,16));
-        }
-        return message.toString();
-    }
-    // After encryption or decryption, this method
-    // converts the output state to a string
-    // of Hex values. Note that if a hex number has
-    // one digit, the method adds a 0 to the left of
-    // the digit so that the string has the correct
-    // length. Every output string should have 32
-    // hex digits.
-    private static String matrixToString(int[][] m)
-    {
-        StringBuilder s = new StringBuilder();
-        m = switchColumnsRows(m);
-        for (int i = 0; i < m.length; i++)
-        {
-            for (int j = 0; j < m[i].length; j++)
-            {
-                String t = Integer.toHexString(m[i][j]);
-                if (t.length() == 1)
-                    s.append("0").append(t);
-                else
-                    s.append(Integer.toHexString(m[i][j]));
-            }
-        }
-        return s.toString();
-    }
     // This method is where all the encryption is done.
     // The cipher first needs to set the state.
     // All operations are preformed on the state
@@ -696,17 +658,36 @@ class AES
     // Step 4: mixColumns.
     // Step 5: add the round key
     // Step 6: repeat steps 2-5 8 more times
-    //          (Steps 2-5 get done a total of 9 times).
+    //          (Steps 2-5 get done a total of 9 times,
+    //          11 times for 192-bit keys and 13 for 256-bit keys).
     // Step 7: apply subBytes to state.
     // Step 8: shiftRows
     // Step 9: add the last round key.
     // Step 10: return the state.
+    // The String key methods take the key schedule from the shared
+    // KeyCache, so a key that is used again is not expanded again.
     public static int[][] cipher(String message, String key)
+    {
+        return KeyCache.shared().withKey(key, k -> cipher(message, k));
+    }
+    // Same as above, but uses the round keys already held by an AesKey
+    // so the key expansion is not repeated for every block.
+    public static int[][] cipher(String message, AesKey key)
+    {
+        long start = AesMetrics.start();
+        int[][] state = referenceCipher(message, key);
+        AesMetrics.record(AesMetrics.Mode.BLOCK, true, key.id(), 16, start);
+        return state;
+    }
+    // The cipher itself, without the metrics (the ReferenceEngine
+    // calls this, and its callers record their own).
+    static int[][] referenceCipher(String message, AesKey key)
     {
         int[][] state = initialState(message);
-        int[][][] roundKeys = getRoundKeys(key);
+        int[][][] roundKeys = key.roundKeys();
+        int rounds = key.rounds();
         state = addRoundKey(state, roundKeys[0]);
-        for (int i = 1; i < 10; i++)
+        for (int i = 1; i < rounds; i++)
         {
             state = subBytes(state);
             state = shiftRows(state);
@@ -715,20 +696,43 @@ class AES
         }
         state = subBytes(state);
         state = shiftRows(state);
-        state = addRoundKey(state, roundKeys[10]);
+        state = addRoundKey(state, roundKeys[rounds]);
 
         return state;
     }
+    // Same as cipher, but runs on a state the caller supplies
+    // (state[row][column], 4 x 4) and changes it in place. No objects
+    // are created, so the same state can be reused for every block.
+    public static void cipherInPlace(int[][] state, AesKey key)
+    {
+        ((StateEngine) key.engine(Engine.STATE)).encrypt(state);
+    }
+    public static void invCipherInPlace(int[][] state, AesKey key)
+    {
+        ((StateEngine) key.engine(Engine.STATE)).decrypt(state);
+    }
     // The invCipher is similar to the cipher method.
     // It essentially runs the cipher in reverse.
     // See our book or the NIST-AES document for details.
     public static int[][] invCipher(String cipherText, String key)
+    {
+        return KeyCache.shared().withKey(key, k -> invCipher(cipherText, k));
+    }
+    public static int[][] invCipher(String cipherText, AesKey key)
+    {
+        long start = AesMetrics.start();
+        int[][] state = referenceInvCipher(cipherText, key);
+        AesMetrics.record(AesMetrics.Mode.BLOCK, false, key.id(), 16, start);
+        return state;
+    }
+    static int[][] referenceInvCipher(String cipherText, AesKey key)
     {
         int[][] state = initialState(cipherText);
-        int[][][] roundKeys = getRoundKeys(key);
+        int[][][] roundKeys = key.roundKeys();
+        int rounds = key.rounds();
 
-        state = addRoundKey(state, roundKeys[10]);
-        for (int i = 9; i > 0; i--)
+        state = addRoundKey(state, roundKeys[rounds]);
+        for (int i = rounds - 1; i > 0; i--)
         {
             state = invShiftRows(state);
             state = invSubBytes(state);
@@ -747,6 +751,19 @@ class AES
     // cipherText string.
     public static String encrypt(String message, String key)
     {
+        return KeyCache.shared().withKey(key, k -> encrypt(message, k));
+    }
+    public static String encrypt(String message, AesKey key)
+    {
+        return encrypt(message, key, Engine.defaultEngine());
+    }
+    // The blocks go through the chosen block engine, which gives the
+    // same output as cipher without the String arithmetic. All blocks
+    // are handed to the engine in one call so engines that work on
+    // several blocks at once (BITSLICED) can do so.
+    public static String encrypt(String message, AesKey key, Engine engine)
+    {
+        long start = AesMetrics.start();
         StringBuilder hexMessage = new StringBuilder();
         for (int i = 0; i < message.length(); i++)
         {
@@ -754,28 +771,260 @@ class AES
             hexMessage.append(hexStr);
         }
         String[] hexBlocks = toHexBlocks(hexMessage.toString());
-        StringBuilder cipherText = new StringBuilder();
+        byte[] blocks = new byte[hexBlocks.length * 16];
         for (int i = 0; i < hexBlocks.length; i++)
-        {
-            int[][] matrix = cipher(hexBlocks[i], key);
-            String s = matrixToString(matrix);
-            cipherText.append(s);
-        }
-        return cipherText.toString();
+            Hex.decode(hexBlocks[i], 0, blocks, 16 * i, 16);
+        key.engine(engine).encryptBlocks(blocks, 0, blocks, 0, hexBlocks.length);
+        String cipherText = Hex.encode(blocks);
+        AesMetrics.record(AesMetrics.Mode.STRING, true, key.id(), blocks.length, start);
+        return cipherText;
     }
     // This method reads in a hex string, separates the string into
     // 128 bit hex blocks, sends each block through invCipher
     // and finally appends the outputs into an ASCII string.
     public static String decrypt(String cipherText, String key)
     {
-        StringBuilder hexMessage = new StringBuilder();
+        return KeyCache.shared().withKey(key, k -> decrypt(cipherText, k));
+    }
+    public static String decrypt(String cipherText, AesKey key)
+    {
+        return decrypt(cipherText, key, Engine.defaultEngine());
+    }
+    public static String decrypt(String cipherText, AesKey key, Engine engine)
+    {
+        long start = AesMetrics.start();
         String[] hexBlocks = toHexBlocks(cipherText);
+        byte[] blocks = new byte[hexBlocks.length * 16];
         for (int i = 0; i < hexBlocks.length; i++)
+            Hex.decode(hexBlocks[i], 0, blocks, 16 * i, 16);
+        key.engine(engine).decryptBlocks(blocks, 0, blocks, 0, hexBlocks.length);
+        // Every byte becomes one char.
+        StringBuilder message = new StringBuilder(blocks.length);
+        for (int i = 0; i < blocks.length; i++)
+            message.append((char) (blocks[i] & 0xff));
+        AesMetrics.record(AesMetrics.Mode.STRING, false, key.id(), blocks.length, start);
+        return message.toString();
+    }
+    /*
+        encrypt and decrypt above fill the front of the message with
+        zeros, so decrypt gives the message back with NUL characters in
+        front and its length is lost. The versions below pad the end of
+        the message with the given Padding instead (Padding.PKCS7 gives
+        back exactly the message that went in), and decrypt removes it
+        again. Every char of the message is one byte, so chars above
+        0xff are not allowed. The cipher text is hex, as above.
+     */
+    public static String encrypt(String message, String key, Padding padding)
+    {
+        return KeyCache.shared().withKey(key, k -> encrypt(message, k, padding));
+    }
+    public static String encrypt(String message, AesKey key, Padding padding)
+    {
+        long start = AesMetrics.start();
+        byte[] b = new byte[padding.paddedLength(message.length())];
+        for (int i = 0; i < message.length(); i++)
         {
-            int[][] matrix = invCipher(hexBlocks[i], key);
-            String s = matrixToString(matrix);
-            hexMessage.append(s);
+            char c = message.charAt(i);
+            if (c > 0xff)
+                throw new IllegalArgumentException("character above 0xff at index " + i);
+            b[i] = (byte) c;
         }
-        return hexToText(hexMessage.toString());
+        int len = padding.pad(b, message.length());
+        key.engine(Engine.defaultEngine()).encryptBlocks(b, 0, b, 0, len / 16);
+        String cipherText = Hex.encode(b);
+        AesMetrics.record(AesMetrics.Mode.STRING, true, key.id(), len, start);
+        return cipherText;
+    }
+    public static String decrypt(String cipherText, String key, Padding padding)
+    {
+        return KeyCache.shared().withKey(key, k -> decrypt(cipherText, k, padding));
+    }
+    public static String decrypt(String cipherText, AesKey key, Padding padding)
+    {
+        long start = AesMetrics.start();
+        byte[] b = Hex.decode(cipherText);
+        if ((b.length & 15) != 0)
+            throw new IllegalArgumentException("cipher text is not a whole number of blocks");
+        key.engine(Engine.defaultEngine()).decryptBlocks(b, 0, b, 0, b.length / 16);
+        int len = padding.unpaddedLength(b, 0, b.length);
+        StringBuilder message = new StringBuilder(len);
+        for (int i = 0; i < len; i++)
+            message.append((char) (b[i] & 0xff));
+        AesMetrics.record(AesMetrics.Mode.STRING, false, key.id(), b.length, start);
+        return message.toString();
+    }
+    /*
+        encrypt(String, AesKey) turns every char into its hex value with
+        no fixed width, so chars below 0x10 give one digit and chars
+        above 0xff give three or four, and the blocks no longer line up
+        with the characters. The versions below take a Charset (for
+        example StandardCharsets.UTF_8) instead: the whole message is
+        encoded to bytes in one pass, padded with PKCS#7 and encrypted,
+        and decrypt decodes the bytes back into exactly the same String.
+        The cipher text is hex, as above.
+        The bytes are made in a buffer (with its encoder and decoder)
+        that each thread keeps and reuses, and which is cleared again
+        after every call. Messages that are not valid text (a lone
+        surrogate char) are rejected with an IllegalArgumentException.
+     */
+    private static final class TextBuffer
+    {
+        // Buffers bigger than this are not kept after the call.
+        private static final int MAX_KEPT = 1 << 20;
+
+        private byte[] bytes = new byte[256];
+        private CharsetEncoder encoder;
+        private CharsetDecoder decoder;
+
+        byte[] bytes(int n)
+        {
+            if (n > MAX_KEPT)
+                return new byte[n];
+            if (bytes.length < n)
+                bytes = new byte[Math.max(n, 2 * bytes.length)];
+            return bytes;
+        }
+
+        CharsetEncoder encoder(Charset charset)
+        {
+            if (encoder == null || !encoder.charset().equals(charset))
+                encoder = charset.newEncoder();
+            return encoder.reset();
+        }
+
+        CharsetDecoder decoder(Charset charset)
+        {
+            if (decoder == null || !decoder.charset().equals(charset))
+                decoder = charset.newDecoder();
+            return decoder.reset();
+        }
+    }
+    private static final ThreadLocal<TextBuffer> TEXT_BUFFER = ThreadLocal.withInitial(TextBuffer::new);
+
+    public static String encrypt(String message, String key, Charset charset)
+    {
+        return KeyCache.shared().withKey(key, k -> encrypt(message, k, charset));
+    }
+    public static String encrypt(String message, AesKey key, Charset charset)
+    {
+        long start = AesMetrics.start();
+        TextBuffer text = TEXT_BUFFER.get();
+        CharsetEncoder encoder = text.encoder(charset);
+        long max = (long) Math.ceil(message.length() * (double) encoder.maxBytesPerChar());
+        if (max > Integer.MAX_VALUE - 16)
+            throw new IllegalArgumentException("message too long");
+        byte[] b = text.bytes(Padding.PKCS7.paddedLength((int) max));
+        ByteBuffer out = ByteBuffer.wrap(b);
+        int len = 0;
+        try
+        {
+            CoderResult result = encoder.encode(CharBuffer.wrap(message), out, true);
+            if (result.isUnderflow())
+                result = encoder.flush(out);
+            if (!result.isUnderflow())
+                result.throwException();
+            len = Padding.PKCS7.pad(b, out.position());
+            key.engine(Engine.defaultEngine()).encryptBlocks(b, 0, b, 0, len / 16);
+            String cipherText = Hex.encode(b, 0, len);
+            AesMetrics.record(AesMetrics.Mode.STRING, true, key.id(), len, start);
+            return cipherText;
+        }
+        catch (CharacterCodingException e)
+        {
+            throw new IllegalArgumentException("message cannot be encoded as " + charset, e);
+        }
+        finally
+        {
+            Arrays.fill(b, 0, Math.max(len, out.position()), (byte) 0);
+        }
+    }
+    public static String decrypt(String cipherText, String key, Charset charset)
+    {
+        return KeyCache.shared().withKey(key, k -> decrypt(cipherText, k, charset));
+    }
+    public static String decrypt(String cipherText, AesKey key, Charset charset)
+    {
+        long start = AesMetrics.start();
+        if (cipherText.isEmpty() || (cipherText.length() & 31) != 0)
+            throw new IllegalArgumentException("cipher text is not a whole number of blocks");
+        int n = cipherText.length() / 2;
+        TextBuffer text = TEXT_BUFFER.get();
+        byte[] b = text.bytes(n);
+        try
+        {
+            Hex.decode(cipherText, 0, b, 0, n);
+            key.engine(Engine.defaultEngine()).decryptBlocks(b, 0, b, 0, n / 16);
+            int len = Padding.PKCS7.unpaddedLength(b, 0, n);
+            String message = text.decoder(charset).decode(ByteBuffer.wrap(b, 0, len)).toString();
+            AesMetrics.record(AesMetrics.Mode.STRING, false, key.id(), n, start);
+            return message;
+        }
+        catch (CharacterCodingException e)
+        {
+            throw new IllegalArgumentException("message is not valid " + charset, e);
+        }
+        finally
+        {
+            Arrays.fill(b, 0, n, (byte) 0);
+        }
+    }
+    /*
+        encryptParallel and decryptParallel give exactly the same output
+        as encrypt and decrypt. Every block is independent of the others,
+        so the blocks are split into ranges that run on the pool. Each
+        range writes its hex (or text) straight into its own part of one
+        output array, so no shared StringBuilder is needed.
+        Messages with no more than threshold blocks run on the calling
+        thread.
+     */
+    public static String encryptParallel(String message, AesKey key)
+    {
+        return encryptParallel(message, key, Engine.defaultEngine(),
+                ForkJoinPool.commonPool(), ParallelBlocks.DEFAULT_THRESHOLD);
+    }
+    public static String encryptParallel(String message, AesKey key, Engine engine,
+                                         ForkJoinPool pool, int threshold)
+    {
+        long start = AesMetrics.start();
+        StringBuilder hexMessage = new StringBuilder();
+        for (int i = 0; i < message.length(); i++)
+            hexMessage.append(Integer.toHexString(message.charAt(i)));
+        String[] hexBlocks = toHexBlocks(hexMessage.toString());
+        BlockCipherEngine e = key.engine(engine);
+        char[] cipherText = new char[hexBlocks.length * 32];
+        ParallelBlocks.forEach(hexBlocks.length, threshold, pool, (from, to) ->
+        {
+            byte[] blocks = new byte[(to - from) * 16];
+            for (int i = from; i < to; i++)
+                Hex.decode(hexBlocks[i], 0, blocks, 16 * (i - from), 16);
+            e.encryptBlocks(blocks, 0, blocks, 0, to - from);
+            Hex.encode(blocks, 0, blocks.length, cipherText, 32 * from);
+        });
+        AesMetrics.record(AesMetrics.Mode.STRING, true, key.id(), 16L * hexBlocks.length, start);
+        return new String(cipherText);
+    }
+    public static String decryptParallel(String cipherText, AesKey key)
+    {
+        return decryptParallel(cipherText, key, Engine.defaultEngine(),
+                ForkJoinPool.commonPool(), ParallelBlocks.DEFAULT_THRESHOLD);
+    }
+    public static String decryptParallel(String cipherText, AesKey key, Engine engine,
+                                         ForkJoinPool pool, int threshold)
+    {
+        long start = AesMetrics.start();
+        String[] hexBlocks = toHexBlocks(cipherText);
+        BlockCipherEngine e = key.engine(engine);
+        char[] message = new char[hexBlocks.length * 16];
+        ParallelBlocks.forEach(hexBlocks.length, threshold, pool, (from, to) ->
+        {
+            byte[] blocks = new byte[(to - from) * 16];
+            for (int i = from; i < to; i++)
+                Hex.decode(hexBlocks[i], 0, blocks, 16 * (i - from), 16);
+            e.decryptBlocks(blocks, 0, blocks, 0, to - from);
+            for (int i = 0; i < blocks.length; i++)
+                message[16 * from + i] = (char) (blocks[i] & 0xff);
+        });
+        AesMetrics.record(AesMetrics.Mode.STRING, false, key.id(), 16L * hexBlocks.length, start);
+        return new String(message);
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,660 @@
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+    The command line tool of this project. It encrypts or decrypts a
+    file, or standard input to standard output, one buffer at a time,
+    so the data can be of any size:
+        java -cp out AdvancedEncryptStand keygen --out=key.hex
+        java -cp out AdvancedEncryptStand encrypt --key-file=key.hex --in=data --out=data.aes
+        java -cp out AdvancedEncryptStand decrypt --key-file=key.hex < data.aes > data
+    The options are listed in USAGE. What is written for each mode:
+        gcm - a random 12 byte iv, the cipher text and the 16 byte tag
+        ctr - a random 16 byte iv and the cipher text, which has the
+              same length as the input
+        cbc - a random 16 byte iv and the PKCS#7 padded cipher text
+        ecb - the PKCS#7 padded cipher text, the same as AesOutputStream
+    Decryption has to be given the same mode. A GCM Decryptor releases
+    nothing until the tag has been checked, so gcm decryption holds the
+    whole message in memory (at most 2 GB); the other modes stream.
+    --threads is the size of the pool used by the modes that can share
+    the work of one buffer between cores (ctr, ecb and cbc decryption);
+    the buffer has to be well over 64 KB for that to pay off.
+    --stats prints the bytes read and written, the wall time and the
+    time spent in the cipher alone (without reading and writing), so
+    the tool doubles as a quick throughput test:
+        head -c 1G /dev/zero | java -cp out AdvancedEncryptStand encrypt
+                --mode=ctr --key-file=key.hex --stats > /dev/null
+    An --out file is written under a temporary name in the same
+    directory (readable by its owner only) and moved into place when
+    the run has worked, so a failed run (bad padding or tag, a full
+    disk) leaves any old file as it was. An --out that is not a regular
+    file, such as a device or /dev/null, is written directly and never
+    removed. The exit status is 0 on success, 2 when the command line is
+    wrong and 1 for any other error.
+ */
 public class AdvancedEncryptStand
 {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "usage: AdvancedEncryptStand encrypt|decrypt (--key=HEX | --key-file=FILE) [options]",
+            "       AdvancedEncryptStand keygen [--key-size=BITS] [--out=FILE]",
+            "  --mode=gcm|ctr|cbc|ecb  mode of operation (default gcm)",
+            "  --key=HEX               the key as 32, 48 or 64 hex digits",
+            "  --key-file=FILE         read the hex key from FILE",
+            "  --key-size=BITS         128, 192 or 256: the size the key must have,",
+            "                          or the size keygen makes (default 256)",
+            "  --in=FILE               input file (default standard input)",
+            "  --out=FILE              output file (default standard output)",
+            "  --buffer=SIZE           bytes handled at a time, e.g. 64k or 4m (default 1m)",
+            "  --threads=N             threads for ctr, ecb and cbc decryption (default all cores)",
+            "  --engine=NAME           BYTE, TTABLE, BITSLICED, STATE, JCE, VECTOR or auto",
+            "  --stats                 print the throughput to standard error");
+
+    private static final int DEFAULT_BUFFER = 1 << 20;
+    private static final int MIN_BUFFER = 64;
+    private static final int MAX_BUFFER = 1 << 30;
+
     public static void main(String[] args)
     {
-        // String key = "2b7e151628aed2a6abf7158809cf4f3c"; // This is the key used in the NIST-AES examples.
-        String key = "0f1571c947d9e8590cb7add6af7f6798"; // This is the key used in our book examples.
+        System.exit(run(args));
+    }
+
+    // Returns the exit status.
+    static int run(String[] args)
+    {
+        Options o;
+        try
+        {
+            o = Options.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("error: " + e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        if (o.command.equals("help"))
+        {
+            System.out.println(USAGE);
+            return 0;
+        }
+        try
+        {
+            if (o.command.equals("keygen"))
+                keygen(o);
+            else
+                process(o);
+            return 0;
+        }
+        catch (NoSuchFileException e)
+        {
+            System.err.println("error: no such file: " + e.getMessage());
+            return 1;
+        }
+        catch (IOException | GeneralSecurityException | RuntimeException e)
+        {
+            System.err.println("error: " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            return 1;
+        }
+    }
+
+    private static void keygen(Options o) throws IOException, GeneralSecurityException
+    {
+        byte[] k = new byte[(o.keySize != 0 ? o.keySize : 256) / 8];
+        new SecureRandom().nextBytes(k);
+        byte[] line = (Hex.encode(k) + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII);
+        Arrays.fill(k, (byte) 0);
+        try
+        {
+            // The same way as encrypted output, so the key file is
+            // readable by its owner only from the start.
+            write(o, out -> out.write(line));
+        }
+        finally
+        {
+            Arrays.fill(line, (byte) 0);
+        }
+    }
+
+    private static void process(Options o) throws IOException, GeneralSecurityException
+    {
+        if (o.in != null && o.out != null && Files.exists(o.out) && Files.isSameFile(o.in, o.out))
+            throw new IllegalArgumentException("input and output are the same file");
+        AesKey key = key(o);
+        Engine engine = o.engine != null ? o.engine : Engine.defaultEngine();
+        ForkJoinPool pool = o.threads != 0 ? new ForkJoinPool(o.threads) : ForkJoinPool.commonPool();
+        try
+        {
+            write(o, out ->
+            {
+                try (InputStream in = o.in != null ? Files.newInputStream(o.in)
+                        : new FileInputStream(FileDescriptor.in))
+                {
+                    copy(o, key, engine, pool, in, out);
+                }
+            });
+        }
+        finally
+        {
+            key.destroy();
+            if (pool != ForkJoinPool.commonPool())
+                pool.shutdown();
+        }
+    }
+
+    // Writes what the command makes to --out or standard output.
+    private interface Output
+    {
+        void write(OutputStream out) throws IOException, GeneralSecurityException;
+    }
+
+    // Runs w on the output. A regular (or new) --out file is written
+    // under a temporary name in the same directory, which createTempFile
+    // makes readable by the owner only, and moved into place only when w
+    // has worked; otherwise the temporary file is deleted.
+    private static void write(Options o, Output w) throws IOException, GeneralSecurityException
+    {
+        Path target = null, temp = null;
+        if (o.out != null)
+        {
+            // The file a symbolic link points to is the one replaced.
+            target = Files.exists(o.out) ? o.out.toRealPath() : o.out.toAbsolutePath();
+            if (Files.isRegularFile(target) || !Files.exists(target))
+                temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        }
+        boolean done = false;
+        try
+        {
+            try (OutputStream out = temp != null ? Files.newOutputStream(temp) : output(o))
+            {
+                w.write(out);
+            }
+            if (temp != null)
+                move(temp, target);
+            done = true;
+        }
+        finally
+        {
+            if (!done && temp != null)
+                Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void move(Path temp, Path target) throws IOException
+    {
+        try
+        {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Runs the whole input through the cipher into out.
+    private static void copy(Options o, AesKey key, Engine engine, ForkJoinPool pool, InputStream in,
+                             OutputStream out) throws IOException, GeneralSecurityException
+    {
+        long start = System.nanoTime();
+        Stream s = open(o, key, engine, pool, in, out);
+        // 16 spare bytes for the padding or the tag added by finish.
+        byte[] b = new byte[o.buffer + 16];
+        int keep = s.keep(), have = 0;
+        long read = 0, written = s.header(), cipherNanos = 0;
+        while (true)
+        {
+            int n = fill(in, b, have, o.buffer);
+            read += n - have;
+            have = n;
+            if (have < o.buffer)
+                break;
+            // A full buffer: everything but the bytes finish needs.
+            int len = o.buffer - keep;
+            long t = System.nanoTime();
+            int outLen = s.update(b, len);
+            cipherNanos += System.nanoTime() - t;
+            out.write(b, 0, outLen);
+            written += outLen;
+            System.arraycopy(b, len, b, 0, keep);
+            have = keep;
+        }
+        long t = System.nanoTime();
+        byte[] last = s.finish(b, have);
+        cipherNanos += System.nanoTime() - t;
+        out.write(last);
+        written += last.length;
+        out.flush();
+        if (o.stats)
+            stats(o, key, engine, pool, read, written, System.nanoTime() - start, cipherNanos);
+    }
+
+    private static void stats(Options o, AesKey key, Engine engine, ForkJoinPool pool, long read,
+                              long written, long nanos, long cipherNanos)
+    {
+        // The cipher handles the plain text side, whichever way it goes.
+        long plain = o.command.equals("encrypt") ? read : written;
+        System.err.printf(Locale.ROOT, "%s %s, AES-%d, %s engine, %d thread(s), %d byte buffer%n",
+                o.command, o.mode, 32 * (key.rounds() - 6), engine, pool.getParallelism(), o.buffer);
+        System.err.printf(Locale.ROOT, "read %d bytes, wrote %d bytes in %.3f s: %.1f MB/s%n",
+                read, written, nanos / 1e9, plain / (nanos / 1e3));
+        System.err.printf(Locale.ROOT, "cipher %.3f s: %.1f MB/s%n",
+                cipherNanos / 1e9, plain / (Math.max(cipherNanos, 1) / 1e3));
+    }
+
+    private static AesKey key(Options o) throws IOException
+    {
+        String hex = o.keyHex;
+        if (hex == null)
+            hex = Files.readString(o.keyFile, StandardCharsets.US_ASCII).trim();
+        AesKey key = new AesKey(hex);
+        if (o.keySize != 0 && 32 * (key.rounds() - 6) != o.keySize)
+        {
+            key.destroy();
+            throw new IllegalArgumentException("the key is not " + o.keySize + " bits");
+        }
+        return key;
+    }
+
+    private static OutputStream output(Options o) throws IOException
+    {
+        // Not System.out: a PrintStream hides write errors.
+        return o.out != null ? Files.newOutputStream(o.out) : new FileOutputStream(FileDescriptor.out);
+    }
+
+    // Reads into b[off] until it holds limit bytes or the input ends,
+    // and returns how many it holds.
+    private static int fill(InputStream in, byte[] b, int off, int limit) throws IOException
+    {
+        while (off < limit)
+        {
+            int n = in.read(b, off, limit - off);
+            if (n < 0)
+                break;
+            off += n;
+        }
+        return off;
+    }
+
+    private static byte[] readIv(InputStream in, int length) throws IOException
+    {
+        // Not readNBytes: on JDK 17 that seeks, which fails on a pipe.
+        byte[] iv = new byte[length];
+        if (fill(in, iv, 0, length) != length)
+            throw new EOFException("input is too short to hold the iv");
+        return iv;
+    }
+
+    private static byte[] writeIv(OutputStream out, int length) throws IOException
+    {
+        byte[] iv = new byte[length];
+        new SecureRandom().nextBytes(iv);
+        out.write(iv);
+        return iv;
+    }
+
+    /*
+        One direction of one mode. process feeds it the data a buffer
+        at a time: update gets every full buffer except the last keep()
+        bytes (so always a whole number of blocks) and works in place;
+        finish gets whatever is left at the end, with 16 spare bytes
+        after it, and returns the rest of the output.
+     */
+    private interface Stream
+    {
+        // Bytes written before the data (the iv).
+        default int header()
+        {
+            return 0;
+        }
+
+        // Bytes held back for finish: the last block, which holds the
+        // padding, or the GCM tag.
+        default int keep()
+        {
+            return 0;
+        }
+
+        // Returns the number of output bytes left at the start of b.
+        int update(byte[] b, int len);
+
+        byte[] finish(byte[] b, int len) throws GeneralSecurityException;
+    }
+
+    private static Stream open(Options o, AesKey key, Engine engine, ForkJoinPool pool, InputStream in,
+                               OutputStream out) throws IOException
+    {
+        boolean encrypt = o.command.equals("encrypt");
+        switch (o.mode)
+        {
+            case "ctr":
+                return ctr(key, engine, pool, encrypt ? writeIv(out, 16) : readIv(in, 16), encrypt);
+            case "cbc":
+                return encrypt ? cbcEncrypt(key, engine, pool, writeIv(out, 16))
+                        : cbcDecrypt(key, engine, pool, readIv(in, 16));
+            case "ecb":
+                return ecb(key, engine, pool, encrypt);
+            default:
+                return encrypt ? gcmEncrypt(key, engine, writeIv(out, 12)) : gcmDecrypt(key, engine, readIv(in, 12));
+        }
+    }
+
+    private static Stream ctr(AesKey key, Engine engine, ForkJoinPool pool, byte[] iv, boolean encrypt)
+    {
+        AesCtr ctr = new AesCtr(key, iv, engine, pool);
+        return new Stream()
+        {
+            private long position;
+
+            public int header()
+            {
+                return encrypt ? 16 : 0;
+            }
+
+            public int update(byte[] b, int len)
+            {
+                ctr.process(b, 0, b, 0, len, position);
+                position += len;
+                return len;
+            }
+
+            public byte[] finish(byte[] b, int len)
+            {
+                update(b, len);
+                return Arrays.copyOf(b, len);
+            }
+        };
+    }
+
+    private static Stream cbcEncrypt(AesKey key, Engine engine, ForkJoinPool pool, byte[] iv)
+    {
+        AesCbc cbc = new AesCbc(key, engine, pool, ParallelBlocks.DEFAULT_THRESHOLD);
+        return new Stream()
+        {
+            public int header()
+            {
+                return 16;
+            }
+
+            public int update(byte[] b, int len)
+            {
+                cbc.encrypt(iv, b, 0, b, 0, len);
+                // The last cipher text block chains into the next buffer.
+                System.arraycopy(b, len - 16, iv, 0, 16);
+                return len;
+            }
+
+            public byte[] finish(byte[] b, int len)
+            {
+                int n = Padding.PKCS7.pad(b, len);
+                update(b, n);
+                return Arrays.copyOf(b, n);
+            }
+        };
+    }
+
+    private static Stream cbcDecrypt(AesKey key, Engine engine, ForkJoinPool pool, byte[] iv)
+    {
+        AesCbc cbc = new AesCbc(key, engine, pool, ParallelBlocks.DEFAULT_THRESHOLD);
+        return new Stream()
+        {
+            private byte[] prev = iv, next = new byte[16];
+
+            public int keep()
+            {
+                return 16;
+            }
+
+            public int update(byte[] b, int len)
+            {
+                // Taken before b is overwritten with the plain text.
+                System.arraycopy(b, len - 16, next, 0, 16);
+                cbc.decrypt(prev, b, 0, b, 0, len);
+                byte[] t = prev;
+                prev = next;
+                next = t;
+                return len;
+            }
+
+            public byte[] finish(byte[] b, int len)
+            {
+                checkBlocks(len);
+                update(b, len);
+                return Arrays.copyOf(b, Padding.PKCS7.unpaddedLength(b, 0, len));
+            }
+        };
+    }
+
+    private static Stream ecb(AesKey key, Engine engine, ForkJoinPool pool, boolean encrypt)
+    {
+        AesEcb ecb = new AesEcb(key, engine);
+        return new Stream()
+        {
+            public int keep()
+            {
+                return encrypt ? 0 : 16;
+            }
+
+            public int update(byte[] b, int len)
+            {
+                ParallelBlocks.forEach(len / 16, ParallelBlocks.DEFAULT_THRESHOLD, pool, (from, to) ->
+                {
+                    if (encrypt)
+                        ecb.encrypt(b, 16 * from, b, 16 * from, 16 * (to - from));
+                    else
+                        ecb.decrypt(b, 16 * from, b, 16 * from, 16 * (to - from));
+                });
+                return len;
+            }
+
+            public byte[] finish(byte[] b, int len)
+            {
+                if (encrypt)
+                {
+                    int n = Padding.PKCS7.pad(b, len);
+                    update(b, n);
+                    return Arrays.copyOf(b, n);
+                }
+                checkBlocks(len);
+                update(b, len);
+                return Arrays.copyOf(b, Padding.PKCS7.unpaddedLength(b, 0, len));
+            }
+        };
+    }
+
+    private static Stream gcmEncrypt(AesKey key, Engine engine, byte[] iv)
+    {
+        AesGcm.Encryptor e = new AesGcm(key, engine).encryptor(iv);
+        return new Stream()
+        {
+            public int header()
+            {
+                return 12;
+            }
+
+            public int update(byte[] b, int len)
+            {
+                return e.update(b, 0, len, b, 0);
+            }
+
+            public byte[] finish(byte[] b, int len)
+            {
+                update(b, len);
+                System.arraycopy(e.finish(), 0, b, len, AesGcm.TAG_LENGTH);
+                return Arrays.copyOf(b, len + AesGcm.TAG_LENGTH);
+            }
+        };
+    }
+
+    private static Stream gcmDecrypt(AesKey key, Engine engine, byte[] iv)
+    {
+        AesGcm.Decryptor d = new AesGcm(key, engine).decryptor(iv);
+        return new Stream()
+        {
+            public int keep()
+            {
+                return AesGcm.TAG_LENGTH;
+            }
+
+            // The Decryptor keeps the cipher text; nothing comes out yet.
+            public int update(byte[] b, int len)
+            {
+                d.update(b, 0, len);
+                return 0;
+            }
+
+            public byte[] finish(byte[] b, int len) throws GeneralSecurityException
+            {
+                if (len < AesGcm.TAG_LENGTH)
+                    throw new IllegalArgumentException("input is too short to hold the tag");
+                d.update(b, 0, len - AesGcm.TAG_LENGTH);
+                return d.finish(Arrays.copyOfRange(b, len - AesGcm.TAG_LENGTH, len));
+            }
+        };
+    }
+
+    private static void checkBlocks(int len)
+    {
+        if (len == 0 || (len & 15) != 0)
+            throw new IllegalArgumentException("input is not a whole number of blocks");
+    }
+
+    // The command line, checked but with nothing opened yet.
+    private static final class Options
+    {
+        String command, mode = "gcm", keyHex;
+        Path keyFile, in, out;
+        int keySize, buffer = DEFAULT_BUFFER, threads;
+        Engine engine;
+        boolean stats;
+
+        static Options parse(String[] args)
+        {
+            Options o = new Options();
+            for (String a : args)
+            {
+                if (a.equals("-h") || a.equals("--help"))
+                {
+                    o.command = "help";
+                    return o;
+                }
+                if (!a.startsWith("--"))
+                {
+                    if (o.command != null)
+                        throw new IllegalArgumentException("unexpected argument: " + a);
+                    o.command = a;
+                    continue;
+                }
+                int eq = a.indexOf('=');
+                String name = eq < 0 ? a : a.substring(0, eq);
+                String value = eq < 0 ? null : a.substring(eq + 1);
+                if (name.equals("--stats"))
+                {
+                    o.stats = true;
+                    continue;
+                }
+                if (value == null || value.isEmpty())
+                    throw new IllegalArgumentException(name + " needs a value");
+                switch (name)
+                {
+                    case "--mode":
+                        o.mode = value.toLowerCase(Locale.ROOT);
+                        if (!Arrays.asList("gcm", "ctr", "cbc", "ecb").contains(o.mode))
+                            throw new IllegalArgumentException("unknown mode: " + value);
+                        break;
+                    case "--key":
+                        o.keyHex = value;
+                        break;
+                    case "--key-file":
+                        o.keyFile = Paths.get(value);
+                        break;
+                    case "--key-size":
+                        o.keySize = number(name, value);
+                        if (o.keySize != 128 && o.keySize != 192 && o.keySize != 256)
+                            throw new IllegalArgumentException("--key-size must be 128, 192 or 256");
+                        break;
+                    case "--in":
+                        o.in = value.equals("-") ? null : Paths.get(value);
+                        break;
+                    case "--out":
+                        o.out = value.equals("-") ? null : Paths.get(value);
+                        break;
+                    case "--buffer":
+                        o.buffer = size(value);
+                        break;
+                    case "--threads":
+                        o.threads = number(name, value);
+                        if (o.threads < 1)
+                            throw new IllegalArgumentException("--threads must be at least 1");
+                        break;
+                    case "--engine":
+                        o.engine = Engine.select(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option: " + name);
+                }
+            }
+            if (o.command == null)
+                throw new IllegalArgumentException("no command given");
+            if (!o.command.equals("keygen") && !o.command.equals("help"))
+            {
+                if (!o.command.equals("encrypt") && !o.command.equals("decrypt"))
+                    throw new IllegalArgumentException("unknown command: " + o.command);
+                if ((o.keyHex == null) == (o.keyFile == null))
+                    throw new IllegalArgumentException("give one of --key and --key-file");
+            }
+            return o;
+        }
 
-        String message = "This is the original message!";
-        System.out.println(message);
-        String encrypted = AES.encrypt(message, key);
-        System.out.println("encrypted: " + encrypted);
-        System.out.println("decrypted: " + AES.decrypt(encrypted, key));
-        System.out.println();
+        private static int number(String name, String value)
+        {
+            try
+            {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(name + " is not a number: " + value);
+            }
+        }
 
-        // The cipherText below is the text posted on Canvas to be decrypted.
-        String cipherText = "4cc88d2df6e8ac02224593a5c7aa940c3fa8b44c79bac4c0323524d16b9640d84b6d7e8e9816008999fbee43837a8444b9b6750b5184591593efd37ef1293ea131da8c4a662abee897bc24f670f8cdab";
-        System.out.println("cipherText: " + cipherText);
-        System.out.println(AES.decrypt(cipherText, key));
+        // A byte count with an optional k or m suffix, rounded down to
+        // a whole number of blocks.
+        private static int size(String value)
+        {
+            String v = value.toLowerCase(Locale.ROOT);
+            int shift = v.endsWith("k") ? 10 : v.endsWith("m") ? 20 : 0;
+            if (shift != 0)
+                v = v.substring(0, v.length() - 1);
+            long n;
+            try
+            {
+                n = Long.parseLong(v) << shift;
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("--buffer is not a size: " + value);
+            }
+            if (n < MIN_BUFFER || n > MAX_BUFFER)
+                throw new IllegalArgumentException("--buffer must be from 64 bytes to 1024m");
+            return (int) n & ~15;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+    A small benchmark harness for this project. It needs nothing but
+    the JDK, so it runs straight from the compiled sources:
+        javac -d out src/*.java
+        java -cp out AesBenchmark [--quick] [filter ...]
+    Every benchmark is warmed up first, then run for a fixed time. For
+    each one it prints the operations per second, the throughput in
+    MB/s and the bytes allocated per operation on the calling thread
+    (from the JVM's per-thread allocation counter, the same number the
+    JMH gc profiler reports). Work done on pool threads is not counted
+    in the allocation column.
+    Only benchmarks whose name contains one of the filters are run.
+    That the engines allocate nothing per block is checked by
+    AesSelfTest, not here.
+    --files=1024,8192 also times AesFiles on temporary files of those
+    sizes in MB (written to java.io.tmpdir and deleted afterwards).
+    The javax.crypto rows are the JDK's own AES (with the hardware
+    AES instructions where the JVM has them) for comparison.
+    The "AesService" rows send the same small messages as the
+    encryptBatch rows, but as separate requests to an AesService.
+    The "metrics off" and "metrics on" rows show what AesMetrics
+    costs on a one block call.
+    The "timing" rows compare how much the time per block changes
+    between two classes of input (all zero blocks against random
+    blocks) for a table engine and the bitsliced engine. The t value
+    is Welch's t statistic; values far above 4.5 suggest the running
+    time depends on the data. AesSelfTest fails if it does for the
+    bitsliced engine.
+ */
+public class AesBenchmark
+{
+    private static final String HEX_KEY = "000102030405060708090a0b0c0d0e0f";
+    private static final String HEX_KEY_256 = HEX_KEY + "101112131415161718191a1b1c1d1e1f";
+    private static final int[] SIZES = {16, 1024, 64 * 1024, 16 * 1024 * 1024};
+    // The REFERENCE engine is far too slow for anything but single blocks,
+    // and VECTOR is just BITSLICED again without the Vector API.
+    private static final Engine[] BULK_ENGINES = java.util.Arrays.stream(Engine.values())
+            .filter(e -> e != Engine.REFERENCE && (e != Engine.VECTOR || Engine.vectorAvailable()))
+            .toArray(Engine[]::new);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Results are folded into this so the JIT cannot drop the work.
+    static volatile int sink;
+
+    private interface Op
+    {
+        void run() throws Exception;
+    }
+
+    private static long warmupNanos = 500_000_000L, measureNanos = 1_000_000_000L;
+    private static final List<String> filters = new ArrayList<>();
+    private static final List<Long> fileSizes = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception
+    {
+        for (String a : args)
+        {
+            if (a.equals("--quick"))
+            {
+                warmupNanos /= 5;
+                measureNanos /= 5;
+            }
+            else if (a.startsWith("--files="))
+            {
+                for (String mb : a.substring("--files=".length()).split(","))
+                    fileSizes.add(Long.parseLong(mb) << 20);
+            }
+            else
+                filters.add(a);
+        }
+        System.out.println("default engine: " + Engine.defaultEngine()
+                + (Engine.vectorAvailable() ? ", vector engine available" : ""));
+        System.out.printf("%-36s %10s %14s %10s %14s%n", "benchmark", "bytes", "ops/s", "MB/s", "alloc B/op");
+
+        AesKey key = new AesKey(HEX_KEY);
+        bench("keyExpansion", 0, () -> sink += new AesKey(HEX_KEY).rounds());
+
+        String block = "00112233445566778899aabbccddeeff";
+        bench("cipher (reference)", 16, () -> sink += AES.cipher(block, key)[0][0]);
+        bench("invCipher (reference)", 16, () -> sink += AES.invCipher(block, key)[0][0]);
+
+        AesKey key256 = new AesKey(HEX_KEY_256);
+        bench("keyExpansion AES-256", 0, () -> sink += new AesKey(HEX_KEY_256).rounds());
+
+        Random random = new Random(1);
+        for (Engine engine : Engine.values())
+        {
+            BlockCipherEngine e = key.engine(engine);
+            byte[] b = new byte[16];
+            bench("encryptBlock " + engine, 16, () -> e.encryptBlock(b, 0, b, 0));
+            bench("decryptBlock " + engine, 16, () -> e.decryptBlock(b, 0, b, 0));
+            BlockCipherEngine e256 = key256.engine(engine);
+            bench("encryptBlock " + engine + " AES-256", 16, () -> e256.encryptBlock(b, 0, b, 0));
+        }
+
+        for (int size : SIZES)
+        {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            StringBuilder text = new StringBuilder(size);
+            for (int i = 0; i < size; i++)
+                text.append((char) (32 + (data[i] & 63)));
+            String message = text.toString();
+            String cipherText = AES.encrypt(message, key);
+            for (Engine engine : BULK_ENGINES)
+            {
+                bench("encrypt(String) " + engine, size, () -> sink += AES.encrypt(message, key, engine).length());
+                bench("decrypt(String) " + engine, size, () -> sink += AES.decrypt(cipherText, key, engine).length());
+            }
+            String utf8CipherText = AES.encrypt(message, key, StandardCharsets.UTF_8);
+            bench("encrypt(String, UTF-8)", size, () -> sink += AES.encrypt(message, key, StandardCharsets.UTF_8).length());
+            bench("decrypt(String, UTF-8)", size,
+                    () -> sink += AES.decrypt(utf8CipherText, key, StandardCharsets.UTF_8).length());
+            bench("encrypt(String, String key)", size, () -> sink += AES.encrypt(message, HEX_KEY).length());
+            bench("encryptParallel(String)", size, () -> sink += AES.encryptParallel(message, key).length());
+
+            byte[] iv = new byte[16];
+            byte[] out = new byte[size];
+            for (Engine engine : BULK_ENGINES)
+            {
+                AesCtr ctr = new AesCtr(key, iv, engine, ForkJoinPool.commonPool());
+                bench("CTR " + engine, size, () -> ctr.process(data, 0, out, 0, size, 0));
+                AesCbc cbc = new AesCbc(key, engine, ForkJoinPool.commonPool(), ParallelBlocks.DEFAULT_THRESHOLD);
+                bench("CBC encrypt " + engine, size, () -> cbc.encrypt(iv, data, 0, out, 0, size));
+                bench("CBC decrypt " + engine, size, () -> cbc.decrypt(iv, data, 0, out, 0, size));
+                AesGcm gcm = new AesGcm(key, engine);
+                byte[] gcmIv = new byte[12];
+                byte[] noAad = new byte[0];
+                bench("GCM encrypt " + engine, size, () -> sink += gcm.encrypt(gcmIv, noAad, data).length);
+            }
+
+            SecretKeySpec spec = new SecretKeySpec(Hex.decode(HEX_KEY), "AES");
+            Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+            ecb.init(Cipher.ENCRYPT_MODE, spec);
+            bench("javax.crypto ECB", size, () -> ecb.doFinal(data, 0, size, out, 0));
+            Cipher ctr = Cipher.getInstance("AES/CTR/NoPadding");
+            ctr.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(iv));
+            bench("javax.crypto CTR", size, () -> ctr.doFinal(data, 0, size, out, 0));
+        }
+
+        // Many small messages, one at a time and as one batch.
+        List<byte[]> tokens = new ArrayList<>();
+        long tokenBytes = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            byte[] t = new byte[1 + random.nextInt(64)];
+            random.nextBytes(t);
+            tokens.add(t);
+            tokenBytes += t.length;
+        }
+        for (Engine engine : BULK_ENGINES)
+        {
+            AesEcb ecb = new AesEcb(key, engine);
+            bench("encrypt(byte[]) 1000 tokens " + engine, tokenBytes, () ->
+            {
+                for (byte[] t : tokens)
+                    sink += ecb.encrypt(t).length;
+            });
+            bench("encryptBatch 1000 tokens " + engine, tokenBytes, () -> sink += ecb.encryptBatch(tokens).size());
+        }
+        // The same tokens as separate AesService requests, which the
+        // service puts back together into batches.
+        for (Engine engine : new Engine[] {Engine.TTABLE, Engine.BITSLICED})
+        {
+            try (AesService service = new AesService(key, engine, Runtime.getRuntime().availableProcessors(),
+                    AesService.DEFAULT_QUEUE_CAPACITY, AesService.DEFAULT_BATCH_BLOCKS,
+                    AesService.DEFAULT_MAX_DELAY_NANOS, java.util.concurrent.TimeUnit.NANOSECONDS))
+            {
+                List<java.util.concurrent.CompletableFuture<byte[]>> results = new ArrayList<>();
+                bench("AesService 1000 tokens " + engine, tokenBytes, () ->
+                {
+                    for (byte[] t : tokens)
+                        results.add(service.encrypt(t));
+                    for (java.util.concurrent.CompletableFuture<byte[]> r : results)
+                        sink += r.join().length;
+                    results.clear();
+                });
+            }
+        }
+
+        // The cost of the metrics on a small call, off and on.
+        AesEcb ecb = new AesEcb(key, Engine.TTABLE);
+        byte[] one = new byte[16];
+        bench("ECB 1 block TTABLE metrics off", 16, () -> ecb.encrypt(one, 0, one, 0, 16));
+        AesMetrics.enable(true);
+        bench("ECB 1 block TTABLE metrics on", 16, () -> ecb.encrypt(one, 0, one, 0, 16));
+        AesMetrics.enable(false);
+
+        // The TTableEngine rounds with the round keys read from an
+        // OffHeapKeyStore instead of an int[].
+        try (OffHeapKeyStore store = new OffHeapKeyStore(1))
+        {
+            OffHeapKeyStore.Key stored = store.add(HEX_KEY);
+            BlockCipherEngine table = key.engine(Engine.TTABLE);
+            byte[] blocks = new byte[16 * 64];
+            bench("encryptBlocks x64 TTABLE", blocks.length, () -> table.encryptBlocks(blocks, 0, blocks, 0, 64));
+            bench("encryptBlocks x64 off-heap key", blocks.length, () -> stored.encryptBlocks(blocks, 0, blocks, 0, 64));
+            bench("decryptBlocks x64 off-heap key", blocks.length, () -> stored.decryptBlocks(blocks, 0, blocks, 0, 64));
+        }
+
+        timing(key, Engine.TTABLE);
+        timing(key, Engine.BITSLICED);
+        for (long size : fileSizes)
+            files(key, size);
+    }
+
+    private static boolean selected(String name)
+    {
+        if (filters.isEmpty())
+            return true;
+        for (String f : filters)
+        {
+            if (name.contains(f))
+                return true;
+        }
+        return false;
+    }
+
+    private static void bench(String name, long bytes, Op op) throws Exception
+    {
+        if (!selected(name))
+            return;
+        long end = System.nanoTime() + warmupNanos;
+        while (System.nanoTime() < end)
+            op.run();
+        long ops = 0;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long now;
+        do
+        {
+            op.run();
+            ops++;
+            now = System.nanoTime();
+        }
+        while (now - start < measureNanos);
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        double seconds = (now - start) / 1e9;
+        System.out.printf("%-36s %10d %14.1f %10.2f %14.1f%n", name, bytes, ops / seconds,
+                bytes * ops / seconds / 1e6, (double) allocated / ops);
+    }
+
+    // Compares the time per batch for zero and random input (see
+    // AesSelfTest.timing).
+    private static void timing(AesKey key, Engine engine)
+    {
+        String name = "timing " + engine;
+        if (!selected(name))
+            return;
+        double[] r = AesSelfTest.timing(key.engine(engine), (int) (measureNanos / 50_000));
+        System.out.printf("%-36s zero %.1f ns, random %.1f ns per 64 blocks, t = %.2f%n",
+                name, r[0], r[1], r[2]);
+    }
+
+    // Encrypts a file of the given size with AesFiles once and reports MB/s.
+    private static void files(AesKey key, long size) throws IOException
+    {
+        Path in = Files.createTempFile("aes-bench", ".in");
+        Path out = Files.createTempFile("aes-bench", ".out");
+        try
+        {
+            byte[] data = new byte[1 << 20];
+            new Random(3).nextBytes(data);
+            try (OutputStream o = Files.newOutputStream(in))
+            {
+                for (long done = 0; done < size; done += data.length)
+                    o.write(data, 0, (int) Math.min(data.length, size - done));
+            }
+            AesCtr ctr = new AesCtr(key, new byte[16], Engine.TTABLE, ForkJoinPool.commonPool());
+            long start = System.nanoTime();
+            AesFiles.process(in, out, ctr);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-36s %10d %14.3f %10.2f%n", "AesFiles CTR TTABLE", size, 1 / seconds,
+                    size / seconds / 1e6);
+        }
+        finally
+        {
+            Files.deleteIfExists(in);
+            Files.deleteIfExists(out);
+        }
+    }
+}
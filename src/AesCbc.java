@@ -0,0 +1,101 @@
+import java.util.concurrent.ForkJoinPool;
+
+/*
+    AesCbc is AES in cipher block chaining (CBC) mode:
+        C_i = encrypt(P_i xor C_(i-1)),   C_(-1) = iv
+        P_i = decrypt(C_i) xor C_(i-1)
+    Encryption has to go one block after another, since every block
+    needs the cipher text of the one before. It works directly in the
+    output array and creates no objects.
+    Decryption only needs two cipher text blocks for each plain text
+    block, so the data is cut into chunks of chunkBlocks blocks that
+    are decrypted in parallel on a ForkJoinPool. Each chunk first copies
+    its own cipher text, so in and out may be the same array.
+    The data must be a whole number of blocks; padding is up to the
+    caller. An AesCbc never changes after it is created, so it can be
+    shared between threads.
+ */
+public final class AesCbc
+{
+    private final BlockCipherEngine engine;
+    private final long keyId;
+    private final ForkJoinPool pool;
+    private final int chunkBlocks;
+
+    public AesCbc(AesKey key)
+    {
+        this(key, Engine.defaultEngine(), ForkJoinPool.commonPool(), ParallelBlocks.DEFAULT_THRESHOLD);
+    }
+
+    public AesCbc(AesKey key, Engine engine, ForkJoinPool pool, int chunkBlocks)
+    {
+        this(key.engine(engine), key.id(), pool, chunkBlocks);
+    }
+
+    // For keys that are not AesKeys (see OffHeapKeyStore).
+    AesCbc(BlockCipherEngine engine, long keyId, ForkJoinPool pool, int chunkBlocks)
+    {
+        if (chunkBlocks < 1)
+            throw new IllegalArgumentException("chunkBlocks must be at least 1");
+        this.engine = engine;
+        this.keyId = keyId;
+        this.pool = pool;
+        this.chunkBlocks = chunkBlocks;
+    }
+
+    public void encrypt(byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        check(iv, len);
+        long start = AesMetrics.start();
+        byte[] prev = iv;
+        int prevOff = 0;
+        for (int i = 0; i < len; i += 16)
+        {
+            for (int j = 0; j < 16; j++)
+                out[outOff + i + j] = (byte) (in[inOff + i + j] ^ prev[prevOff + j]);
+            engine.encryptBlock(out, outOff + i, out, outOff + i);
+            prev = out;
+            prevOff = outOff + i;
+        }
+        AesMetrics.record(AesMetrics.Mode.CBC, true, keyId, len, start);
+    }
+
+    public void decrypt(byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        check(iv, len);
+        long began = AesMetrics.start();
+        int blocks = len / 16;
+        int chunks = (blocks + chunkBlocks - 1) / chunkBlocks;
+        // The cipher text block just before each chunk, taken before any
+        // output is written.
+        byte[] prev = new byte[16 * chunks];
+        if (chunks > 0)
+            System.arraycopy(iv, 0, prev, 0, 16);
+        for (int c = 1; c < chunks; c++)
+            System.arraycopy(in, inOff + 16 * (c * chunkBlocks - 1), prev, 16 * c, 16);
+        ParallelBlocks.forEach(chunks, 1, pool, (from, to) ->
+        {
+            byte[] saved = new byte[16 * Math.min(chunkBlocks, blocks)];
+            for (int c = from; c < to; c++)
+            {
+                int start = 16 * c * chunkBlocks;
+                int n = Math.min(chunkBlocks, blocks - c * chunkBlocks);
+                System.arraycopy(in, inOff + start, saved, 0, 16 * n);
+                engine.decryptBlocks(saved, 0, out, outOff + start, n);
+                for (int j = 0; j < 16; j++)
+                    out[outOff + start + j] ^= prev[16 * c + j];
+                for (int j = 16; j < 16 * n; j++)
+                    out[outOff + start + j] ^= saved[j - 16];
+            }
+        });
+        AesMetrics.record(AesMetrics.Mode.CBC, false, keyId, len, began);
+    }
+
+    private static void check(byte[] iv, int len)
+    {
+        if (iv.length != 16)
+            throw new IllegalArgumentException("iv must be 16 bytes");
+        if ((len & 15) != 0)
+            throw new IllegalArgumentException("length must be a whole number of blocks");
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+    Copies everything from one channel to another, encrypting or
+    decrypting it on the way. The format is the same as AesOutputStream
+    and AesInputStream (blocks encrypted one by one, PKCS#7 padding at
+    the end). Only one buffer is used, so the memory needed does not
+    depend on the size of the data.
+    The channels must be blocking channels. Neither channel is closed.
+ */
+public final class AesChannels
+{
+    private AesChannels()
+    {
+    }
+
+    // Returns the number of cipher text bytes written.
+    public static long encrypt(ReadableByteChannel in, WritableByteChannel out, AesKey key)
+            throws IOException
+    {
+        return encrypt(in, out, key, Engine.defaultEngine(), AesOutputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    public static long encrypt(ReadableByteChannel in, WritableByteChannel out, AesKey key,
+                               Engine engine, int bufferSize) throws IOException
+    {
+        BlockCipherEngine e = key.engine(engine);
+        ByteBuffer buf = allocate(bufferSize, 16);
+        byte[] b = buf.array();
+        long written = 0;
+        while (in.read(buf) >= 0)
+        {
+            if (!buf.hasRemaining())
+            {
+                e.encryptBlocks(b, 0, b, 0, buf.position() / 16);
+                written += writeFully(out, buf);
+            }
+        }
+        buf.position(AesOutputStream.pad(b, buf.position()));
+        e.encryptBlocks(b, 0, b, 0, buf.position() / 16);
+        return written + writeFully(out, buf);
+    }
+
+    // Returns the number of plain text bytes written.
+    public static long decrypt(ReadableByteChannel in, WritableByteChannel out, AesKey key)
+            throws IOException
+    {
+        return decrypt(in, out, key, Engine.defaultEngine(), AesOutputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    public static long decrypt(ReadableByteChannel in, WritableByteChannel out, AesKey key,
+                               Engine engine, int bufferSize) throws IOException
+    {
+        BlockCipherEngine e = key.engine(engine);
+        ByteBuffer buf = allocate(bufferSize, 32);
+        byte[] b = buf.array();
+        long written = 0;
+        while (in.read(buf) >= 0)
+        {
+            if (!buf.hasRemaining())
+            {
+                // Keep the last block back, it may hold the padding.
+                int n = buf.position() - 16;
+                e.decryptBlocks(b, 0, b, 0, n / 16);
+                buf.position(n);
+                written += writeFully(out, buf);
+                System.arraycopy(b, n, b, 0, 16);
+                buf.position(16);
+            }
+        }
+        int n = buf.position();
+        if (n == 0 || (n & 15) != 0)
+            throw new IOException("cipher text is not a whole number of blocks");
+        e.decryptBlocks(b, 0, b, 0, n / 16);
+        buf.position(AesInputStream.unpaddedLength(b, n));
+        return written + writeFully(out, buf);
+    }
+
+    private static ByteBuffer allocate(int bufferSize, int min)
+    {
+        if (bufferSize < min)
+            throw new IllegalArgumentException("buffer size must be at least " + min);
+        return ByteBuffer.allocate(bufferSize & ~15);
+    }
+
+    // Writes buf[0, position) and clears the buffer.
+    private static int writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException
+    {
+        buf.flip();
+        int n = buf.remaining();
+        while (buf.hasRemaining())
+            out.write(buf);
+        buf.clear();
+        return n;
+    }
+}
@@ -0,0 +1,154 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+    AesCtr is AES in counter (CTR) mode. Block i of the data is xored
+    with the encryption of the counter block
+        iv + i   (the 16 byte iv read as a 128-bit big-endian number)
+    so encrypting and decrypting are the same operation and the data
+    does not need padding.
+    Every block's key stream depends only on its index, which gives
+    two useful properties:
+        - any part of the data can be processed on its own, starting
+          at any byte position (random access), and
+        - a large buffer can be split into ranges that are processed
+          on different cores. process splits work across a
+          ForkJoinPool once there is more than PARALLEL_THRESHOLD bytes.
+    The same key and iv must never be used for two different messages.
+    An AesCtr never changes after it is created, so it can be shared
+    between threads.
+ */
+public final class AesCtr
+{
+    // Below this many bytes the data is processed on the calling thread.
+    static final int PARALLEL_THRESHOLD = 64 * 1024;
+    // Number of key stream bytes made with one engine call.
+    private static final int CHUNK = 4096;
+
+    private final BlockCipherEngine engine;
+    private final long keyId;
+    private final long ivHigh, ivLow;
+    private final ForkJoinPool pool;
+
+    public AesCtr(AesKey key, byte[] iv)
+    {
+        this(key, iv, Engine.defaultEngine(), ForkJoinPool.commonPool());
+    }
+
+    public AesCtr(AesKey key, byte[] iv, Engine engine, ForkJoinPool pool)
+    {
+        this(key.engine(engine), key.id(), iv, pool);
+    }
+
+    // For keys that are not AesKeys (see OffHeapKeyStore).
+    AesCtr(BlockCipherEngine engine, long keyId, byte[] iv, ForkJoinPool pool)
+    {
+        if (iv.length != 16)
+            throw new IllegalArgumentException("iv must be 16 bytes");
+        this.engine = engine;
+        this.keyId = keyId;
+        this.ivHigh = getLong(iv, 0);
+        this.ivLow = getLong(iv, 8);
+        this.pool = pool;
+    }
+
+    // Encrypts (or decrypts) a whole message.
+    public byte[] process(byte[] in)
+    {
+        byte[] out = new byte[in.length];
+        process(in, 0, out, 0, in.length, 0);
+        return out;
+    }
+
+    /*
+        Encrypts (or decrypts) len bytes from in[inOff] into out[outOff].
+        position is where in[inOff] sits in the whole message, so the
+        call gives the same bytes as processing the whole message and
+        taking that slice. in and out may be the same array.
+     */
+    public void process(byte[] in, int inOff, byte[] out, int outOff, int len, long position)
+    {
+        if (position < 0)
+            throw new IllegalArgumentException("negative position");
+        long start = AesMetrics.start();
+        // Pieces of PARALLEL_THRESHOLD bytes, each one done directly.
+        int pieces = (int) ((len + (long) PARALLEL_THRESHOLD - 1) / PARALLEL_THRESHOLD);
+        ParallelBlocks.forEach(pieces, 1, pool, (from, to) ->
+        {
+            for (int p = from; p < to; p++)
+            {
+                int off = p * PARALLEL_THRESHOLD;
+                processRange(in, inOff + off, out, outOff + off, Math.min(PARALLEL_THRESHOLD, len - off),
+                        position + off);
+            }
+        });
+        AesMetrics.record(AesMetrics.Mode.CTR, true, keyId, len, start);
+    }
+
+    // The key the key stream is made with, for AesMetrics.
+    long keyId()
+    {
+        return keyId;
+    }
+
+    /*
+        The ByteBuffer form of process: in.remaining() bytes go to out,
+        and position is where in's current position sits in the whole
+        message. Direct buffers are handled a chunk at a time, and in
+        and out may be the same buffer.
+     */
+    public int process(ByteBuffer in, ByteBuffer out, long position)
+    {
+        return Buffers.transform(in, out,
+                (i, iOff, o, oOff, len, done) -> process(i, iOff, o, oOff, len, position + done));
+    }
+
+    private void processRange(byte[] in, int inOff, byte[] out, int outOff, int len, long position)
+    {
+        byte[] ks = new byte[Math.min(CHUNK, (len + 31) & ~15)];
+        long block = position >>> 4;
+        int skip = (int) (position & 15);
+        while (len > 0)
+        {
+            int n = Math.min(len, ks.length - skip);
+            int blocks = (skip + n + 15) >>> 4;
+            keyStream(block, ks, blocks);
+            for (int i = 0; i < n; i++)
+                out[outOff + i] = (byte) (in[inOff + i] ^ ks[skip + i]);
+            inOff += n;
+            outOff += n;
+            len -= n;
+            block += blocks;
+            skip = 0;
+        }
+    }
+
+    // Writes the key stream for the given number of blocks, starting at
+    // block index block, into ks[0].
+    void keyStream(long block, byte[] ks, int blocks)
+    {
+        for (int i = 0; i < blocks; i++)
+            counterBlock(block + i, ks, 16 * i);
+        engine.encryptBlocks(ks, 0, ks, 0, blocks);
+    }
+
+    // Writes iv + block (mod 2^128) into b[off].
+    private void counterBlock(long block, byte[] b, int off)
+    {
+        long low = ivLow + block;
+        long high = Long.compareUnsigned(low, ivLow) < 0 ? ivHigh + 1 : ivHigh;
+        putLong(high, b, off);
+        putLong(low, b, off + 8);
+    }
+
+    static long getLong(byte[] b, int off)
+    {
+        return (long) ByteEngine.getInt(b, off) << 32 | (ByteEngine.getInt(b, off + 4) & 0xffffffffL);
+    }
+
+    static void putLong(long v, byte[] b, int off)
+    {
+        ByteEngine.putInt((int) (v >>> 32), b, off);
+        ByteEngine.putInt((int) v, b, off + 4);
+    }
+}
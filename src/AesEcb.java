@@ -0,0 +1,195 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    AesEcb is the byte[] and ByteBuffer form of AES.encrypt and
+    AES.decrypt: every 16 byte block is encrypted on its own. There is
+    no hex anywhere on this path; use Hex to turn the result into a
+    String if one is needed.
+    The offset/length methods work on whole blocks only, and in and out
+    may be the same array (or the same buffer) to work in place.
+    encrypt(byte[]) and decrypt(byte[]) handle any length by adding and
+    removing PKCS#7 padding, the same format as AesOutputStream. The
+    versions that take a Padding can use zero padding or none instead.
+    encryptBatch and decryptBatch do the same for many small messages
+    at once: all of them are packed into one array and go through the
+    engine in a single call (so the BITSLICED engine always has 8
+    blocks to work on), and the results come back as slices of that
+    array instead of one new array per message.
+    An AesEcb never changes after it is created, so it can be shared
+    between threads.
+ */
+public final class AesEcb
+{
+    private final BlockCipherEngine engine;
+    private final long keyId;
+
+    public AesEcb(AesKey key)
+    {
+        this(key, Engine.defaultEngine());
+    }
+
+    public AesEcb(AesKey key, Engine engine)
+    {
+        this(key.engine(engine), key.id());
+    }
+
+    // For keys that are not AesKeys (see OffHeapKeyStore).
+    AesEcb(BlockCipherEngine engine, long keyId)
+    {
+        this.engine = engine;
+        this.keyId = keyId;
+    }
+
+    public void encrypt(byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        long start = AesMetrics.start();
+        engine.encryptBlocks(in, inOff, out, outOff, blocks(len));
+        AesMetrics.record(AesMetrics.Mode.ECB, true, keyId, len, start);
+    }
+
+    public void decrypt(byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        long start = AesMetrics.start();
+        engine.decryptBlocks(in, inOff, out, outOff, blocks(len));
+        AesMetrics.record(AesMetrics.Mode.ECB, false, keyId, len, start);
+    }
+
+    // Encrypts in.remaining() bytes (whole blocks) into out.
+    // Heap and direct buffers can be mixed.
+    public int encrypt(ByteBuffer in, ByteBuffer out)
+    {
+        blocks(in.remaining());
+        return Buffers.transform(in, out, (i, iOff, o, oOff, len, done) -> encrypt(i, iOff, o, oOff, len));
+    }
+
+    public int decrypt(ByteBuffer in, ByteBuffer out)
+    {
+        blocks(in.remaining());
+        return Buffers.transform(in, out, (i, iOff, o, oOff, len, done) -> decrypt(i, iOff, o, oOff, len));
+    }
+
+    // Encrypts the remaining bytes of buf in place.
+    public int encrypt(ByteBuffer buf)
+    {
+        return encrypt(buf, buf);
+    }
+
+    public int decrypt(ByteBuffer buf)
+    {
+        return decrypt(buf, buf);
+    }
+
+    // Pads with PKCS#7 and encrypts; the result is 1 to 16 bytes longer.
+    public byte[] encrypt(byte[] plainText)
+    {
+        return encrypt(plainText, Padding.PKCS7);
+    }
+
+    // Decrypts and removes the PKCS#7 padding.
+    public byte[] decrypt(byte[] cipherText)
+    {
+        return decrypt(cipherText, Padding.PKCS7);
+    }
+
+    public byte[] encrypt(byte[] plainText, Padding padding)
+    {
+        byte[] out = Arrays.copyOf(plainText, padding.paddedLength(plainText.length));
+        int len = padding.pad(out, plainText.length);
+        encrypt(out, 0, out, 0, len);
+        return out;
+    }
+
+    public byte[] decrypt(byte[] cipherText, Padding padding)
+    {
+        byte[] out = new byte[cipherText.length];
+        decrypt(cipherText, 0, out, 0, cipherText.length);
+        return Arrays.copyOf(out, padding.unpaddedLength(out, 0, out.length));
+    }
+
+    // The same as new AesEcb(key).encryptBatch(plainTexts).
+    public static List<ByteBuffer> encryptBatch(List<byte[]> plainTexts, AesKey key)
+    {
+        return new AesEcb(key).encryptBatch(plainTexts);
+    }
+
+    public static List<ByteBuffer> decryptBatch(List<byte[]> cipherTexts, AesKey key)
+    {
+        return new AesEcb(key).decryptBatch(cipherTexts);
+    }
+
+    // Pads and encrypts every message, giving the same bytes as
+    // encrypt(byte[]) for each. The buffers returned share one array.
+    public List<ByteBuffer> encryptBatch(List<byte[]> plainTexts)
+    {
+        long start = AesMetrics.start();
+        int total = 0;
+        for (byte[] p : plainTexts)
+            total = Math.addExact(total, (p.length & ~15) + 16);
+        byte[] all = new byte[total];
+        ByteBuffer whole = ByteBuffer.wrap(all);
+        List<ByteBuffer> out = new ArrayList<>(plainTexts.size());
+        int off = 0;
+        for (byte[] p : plainTexts)
+        {
+            System.arraycopy(p, 0, all, off, p.length);
+            int end = Padding.PKCS7.pad(all, off + p.length);
+            out.add(whole.slice(off, end - off));
+            off = end;
+        }
+        engine.encryptBlocks(all, 0, all, 0, total / 16);
+        AesMetrics.record(AesMetrics.Mode.ECB, true, keyId, total, start);
+        return out;
+    }
+
+    // Decrypts every message and removes its padding. The buffers
+    // returned share one array.
+    public List<ByteBuffer> decryptBatch(List<byte[]> cipherTexts)
+    {
+        long start = AesMetrics.start();
+        int total = 0;
+        for (byte[] c : cipherTexts)
+        {
+            if (c.length == 0)
+                throw new IllegalArgumentException("cipher text is empty");
+            total = Math.addExact(total, c.length);
+        }
+        blocks(total);
+        byte[] all = new byte[total];
+        int off = 0;
+        for (byte[] c : cipherTexts)
+        {
+            blocks(c.length);
+            System.arraycopy(c, 0, all, off, c.length);
+            off += c.length;
+        }
+        engine.decryptBlocks(all, 0, all, 0, total / 16);
+        ByteBuffer whole = ByteBuffer.wrap(all);
+        List<ByteBuffer> out = new ArrayList<>(cipherTexts.size());
+        off = 0;
+        for (int i = 0; i < cipherTexts.size(); i++)
+        {
+            int len = cipherTexts.get(i).length;
+            try
+            {
+                out.add(whole.slice(off, Padding.PKCS7.unpaddedLength(all, off, len)));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException("message " + i + ": " + e.getMessage());
+            }
+            off += len;
+        }
+        AesMetrics.record(AesMetrics.Mode.ECB, false, keyId, total, start);
+        return out;
+    }
+
+    private static int blocks(int len)
+    {
+        if ((len & 15) != 0)
+            throw new IllegalArgumentException("length must be a whole number of blocks");
+        return len / 16;
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+    Encrypts whole files in counter mode through memory mapped windows.
+    The input and output files are mapped WINDOW bytes at a time (so
+    files of any size work, not only up to 2 GB), and each window is cut
+    into CHUNK sized pieces that are done in parallel on a ForkJoinPool.
+    The file data is never copied onto the heap: each piece makes its
+    key stream in a small heap array and xors it straight from the
+    input mapping into the output mapping, 8 bytes at a time.
+    Since counter mode is its own inverse, process both encrypts and
+    decrypts. The output file has the same length as the input.
+    Each output window is forced to the device once it is done, and the
+    file's size and other metadata before process returns, so when it
+    returns the output is on disk (as with FileChannel.force) and not
+    only in the page cache.
+ */
+public final class AesFiles
+{
+    // Bytes mapped at a time; a multiple of CHUNK.
+    static final long WINDOW = 256L << 20;
+    // Bytes handled by one task at a time; a whole number of blocks.
+    static final int CHUNK = 64 * 1024;
+
+    private AesFiles()
+    {
+    }
+
+    // Returns the number of bytes processed.
+    public static long process(Path in, Path out, AesCtr ctr) throws IOException
+    {
+        return process(in, out, ctr, ForkJoinPool.commonPool());
+    }
+
+    public static long process(Path in, Path out, AesCtr ctr, ForkJoinPool pool) throws IOException
+    {
+        if (Files.exists(out) && Files.isSameFile(in, out))
+            throw new IllegalArgumentException("input and output are the same file");
+        long start = AesMetrics.start();
+        try (FileChannel src = FileChannel.open(in, StandardOpenOption.READ);
+             FileChannel dst = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long size = src.size();
+            for (long pos = 0; pos < size; pos += WINDOW)
+            {
+                long base = pos;
+                int n = (int) Math.min(WINDOW, size - pos);
+                MappedByteBuffer a = src.map(FileChannel.MapMode.READ_ONLY, pos, n);
+                MappedByteBuffer b = dst.map(FileChannel.MapMode.READ_WRITE, pos, n);
+                int chunks = (n + CHUNK - 1) / CHUNK;
+                ParallelBlocks.forEach(chunks, 1, pool, (from, to) ->
+                {
+                    byte[] ks = new byte[CHUNK];
+                    for (int c = from; c < to; c++)
+                    {
+                        int off = c * CHUNK;
+                        int len = Math.min(CHUNK, n - off);
+                        ctr.keyStream((base + off) >>> 4, ks, (len + 15) >>> 4);
+                        int i = 0;
+                        for (; i + 8 <= len; i += 8)
+                            b.putLong(off + i, a.getLong(off + i) ^ AesCtr.getLong(ks, i));
+                        for (; i < len; i++)
+                            b.put(off + i, (byte) (a.get(off + i) ^ ks[i]));
+                    }
+                });
+                b.force();
+            }
+            dst.force(true);
+            AesMetrics.record(AesMetrics.Mode.FILE, true, ctr.keyId(), size, start);
+            return size;
+        }
+    }
+}
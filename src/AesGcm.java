@@ -0,0 +1,368 @@
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+
+/*
+    AesGcm is AES in Galois/Counter Mode (NIST SP 800-38D). It encrypts
+    like counter mode and at the same time computes a 16 byte tag over
+    the additional data (aad) and the cipher text, so one pass over the
+    data gives both confidentiality and authentication.
+    The tag uses GHASH, which is multiplication by a fixed value H (the
+    encryption of the zero block) in GF(2^128). Like the multiplication
+    tables of the ByteEngine, the products are precomputed: for every
+    4 bit value i the table holds i * H, so one multiplication is 32
+    table lookups and shifts (Shoup's 4-bit method). The table is made
+    once per AesGcm.
+    For streaming use, encryptor() and decryptor() give an object with
+    update/finish calls. A Decryptor only hashes the cipher text while
+    it is being fed in and decrypts nothing until finish() has checked
+    the tag, so no plain text is ever released from forged data.
+    The same key and iv must never be used for two different messages.
+    An AesGcm can be shared between threads; the Encryptor and
+    Decryptor objects cannot.
+ */
+public final class AesGcm
+{
+    static final int TAG_LENGTH = 16;
+    // Number of key stream blocks made with one engine call.
+    private static final int KEY_STREAM_BLOCKS = 16;
+    // GCM allows at most 2^32 - 2 blocks of data per message.
+    private static final long MAX_TEXT_LENGTH = ((1L << 32) - 2) * 16;
+    // The reduction of the 4 bits shifted out on each step.
+    private static final long[] LAST4 =
+            {
+                    0x0000, 0x1c20, 0x3840, 0x2460, 0x7080, 0x6ca0, 0x48c0, 0x54e0,
+                    0xe100, 0xfd20, 0xd940, 0xc560, 0x9180, 0x8da0, 0xa9c0, 0xb5e0
+            };
+
+    private final BlockCipherEngine engine;
+    private final long keyId;
+    // hh[i] and hl[i] are the high and low 64 bits of i * H.
+    private final long[] hh = new long[16], hl = new long[16];
+
+    public AesGcm(AesKey key)
+    {
+        this(key, Engine.defaultEngine());
+    }
+
+    public AesGcm(AesKey key, Engine engine)
+    {
+        this(key.engine(engine), key.id());
+    }
+
+    // For keys that are not AesKeys (see OffHeapKeyStore).
+    AesGcm(BlockCipherEngine engine, long keyId)
+    {
+        this.engine = engine;
+        this.keyId = keyId;
+        byte[] h = new byte[16];
+        this.engine.encryptBlock(h, 0, h, 0);
+        long vh = AesCtr.getLong(h, 0), vl = AesCtr.getLong(h, 8);
+        // In GCM the first bit is the lowest power, so i = 8 is H itself
+        // and halving i multiplies by x (a right shift with reduction).
+        hh[8] = vh;
+        hl[8] = vl;
+        for (int i = 4; i > 0; i >>= 1)
+        {
+            long t = (vl & 1) * 0xe100000000000000L;
+            vl = (vh << 63) | (vl >>> 1);
+            vh = (vh >>> 1) ^ t;
+            hh[i] = vh;
+            hl[i] = vl;
+        }
+        for (int i = 2; i <= 8; i *= 2)
+        {
+            for (int j = 1; j < i; j++)
+            {
+                hh[i + j] = hh[i] ^ hh[j];
+                hl[i + j] = hl[i] ^ hl[j];
+            }
+        }
+    }
+
+    // Returns the cipher text followed by the 16 byte tag.
+    public byte[] encrypt(byte[] iv, byte[] aad, byte[] plainText)
+    {
+        Encryptor e = encryptor(iv);
+        e.updateAad(aad, 0, aad.length);
+        byte[] out = new byte[plainText.length + TAG_LENGTH];
+        e.update(plainText, 0, plainText.length, out, 0);
+        System.arraycopy(e.finish(), 0, out, plainText.length, TAG_LENGTH);
+        return out;
+    }
+
+    // Takes the cipher text followed by the tag, as made by encrypt.
+    public byte[] decrypt(byte[] iv, byte[] aad, byte[] cipherText) throws AEADBadTagException
+    {
+        if (cipherText.length < TAG_LENGTH)
+            throw new AEADBadTagException("input is shorter than the tag");
+        int n = cipherText.length - TAG_LENGTH;
+        Decryptor d = decryptor(iv);
+        d.updateAad(aad, 0, aad.length);
+        d.update(cipherText, 0, n);
+        return d.finish(Arrays.copyOfRange(cipherText, n, cipherText.length));
+    }
+
+    public Encryptor encryptor(byte[] iv)
+    {
+        return new Encryptor(iv);
+    }
+
+    public Decryptor decryptor(byte[] iv)
+    {
+        return new Decryptor(iv);
+    }
+
+    /*
+        The part shared by encryption and decryption: the counter, the
+        key stream and the running GHASH value. All aad has to be given
+        before the first call with message data.
+     */
+    private abstract class Operation
+    {
+        private final byte[] j0 = new byte[16];
+        private final byte[] counter;
+        private final byte[] keyStream = new byte[16 * KEY_STREAM_BLOCKS];
+        private int keyStreamPos = keyStream.length;
+        // Bytes waiting to make up a whole block for GHASH.
+        private final byte[] pending = new byte[16];
+        private int pendingLength;
+        // The GHASH value, high and low 64 bits.
+        private long x0, x1;
+        private long aadLength, textLength;
+        private boolean aadDone, finished;
+        // For AesMetrics: the whole operation, from creation to finish,
+        // is recorded as one call.
+        private final long start = AesMetrics.start();
+
+        Operation(byte[] iv)
+        {
+            if (iv.length == 0)
+                throw new IllegalArgumentException("iv must not be empty");
+            if (iv.length == 12)
+            {
+                System.arraycopy(iv, 0, j0, 0, 12);
+                j0[15] = 1;
+            }
+            else
+            {
+                // Other iv lengths are hashed, with the length in bits last.
+                hash(iv, 0, iv.length);
+                flushPending();
+                multiplyH(0, (long) iv.length * 8);
+                AesCtr.putLong(x0, j0, 0);
+                AesCtr.putLong(x1, j0, 8);
+                x0 = x1 = 0;
+            }
+            counter = j0.clone();
+        }
+
+        public void updateAad(byte[] b, int off, int len)
+        {
+            checkOpen();
+            if (aadDone)
+                throw new IllegalStateException("aad must come before the message");
+            hash(b, off, len);
+            aadLength += len;
+        }
+
+        // Finishes the aad part on the first call with message data.
+        void startText(int len)
+        {
+            checkOpen();
+            if (!aadDone)
+            {
+                flushPending();
+                aadDone = true;
+            }
+            if (textLength + len > MAX_TEXT_LENGTH || textLength + len < 0)
+                throw new IllegalStateException("message too long for GCM");
+            textLength += len;
+        }
+
+        /*
+            Xors len bytes with the key stream (counter blocks from J0 + 1),
+            one key stream chunk of KEY_STREAM_BLOCKS blocks at a time and
+            8 bytes at a time within it. When hashOut is set, each chunk of
+            output is hashed before the next chunk is made, so encrypting
+            reads and writes the data once and the hash finds it in cache.
+         */
+        void crypt(byte[] in, int inOff, byte[] out, int outOff, int len, boolean hashOut)
+        {
+            while (len > 0)
+            {
+                if (keyStreamPos == keyStream.length)
+                    nextKeyStream();
+                int n = Math.min(len, keyStream.length - keyStreamPos);
+                int i = 0;
+                for (; i + 8 <= n; i += 8)
+                    AesCtr.putLong(AesCtr.getLong(in, inOff + i) ^ AesCtr.getLong(keyStream, keyStreamPos + i),
+                            out, outOff + i);
+                for (; i < n; i++)
+                    out[outOff + i] = (byte) (in[inOff + i] ^ keyStream[keyStreamPos + i]);
+                if (hashOut)
+                    hash(out, outOff, n);
+                keyStreamPos += n;
+                inOff += n;
+                outOff += n;
+                len -= n;
+            }
+        }
+
+        private void nextKeyStream()
+        {
+            for (int i = 0; i < KEY_STREAM_BLOCKS; i++)
+            {
+                // Only the last 32 bits of the counter are incremented.
+                ByteEngine.putInt(ByteEngine.getInt(counter, 12) + 1, counter, 12);
+                System.arraycopy(counter, 0, keyStream, 16 * i, 16);
+            }
+            engine.encryptBlocks(keyStream, 0, keyStream, 0, KEY_STREAM_BLOCKS);
+            keyStreamPos = 0;
+        }
+
+        void hash(byte[] b, int off, int len)
+        {
+            if (pendingLength > 0)
+            {
+                int n = Math.min(len, 16 - pendingLength);
+                System.arraycopy(b, off, pending, pendingLength, n);
+                pendingLength += n;
+                off += n;
+                len -= n;
+                if (pendingLength < 16)
+                    return;
+                multiplyH(AesCtr.getLong(pending, 0), AesCtr.getLong(pending, 8));
+                pendingLength = 0;
+            }
+            for (; len >= 16; off += 16, len -= 16)
+                multiplyH(AesCtr.getLong(b, off), AesCtr.getLong(b, off + 8));
+            System.arraycopy(b, off, pending, 0, len);
+            pendingLength = len;
+        }
+
+        // Hashes a last part block, filled in with zeros.
+        private void flushPending()
+        {
+            if (pendingLength == 0)
+                return;
+            Arrays.fill(pending, pendingLength, 16, (byte) 0);
+            multiplyH(AesCtr.getLong(pending, 0), AesCtr.getLong(pending, 8));
+            pendingLength = 0;
+        }
+
+        /*
+            x = (x xor a) * H, using the 4 bit table. The 32 nibbles are
+            taken from the last to the first, and each step multiplies
+            what is there so far by x^4 (a shift of 4 with reduction).
+         */
+        private void multiplyH(long a0, long a1)
+        {
+            long y0 = x0 ^ a0, y1 = x1 ^ a1;
+            int n = (int) (y1 & 0xf);
+            long zh = hh[n], zl = hl[n];
+            for (int i = 1; i < 32; i++)
+            {
+                n = (int) ((i < 16 ? y1 >>> (4 * i) : y0 >>> (4 * (i - 16))) & 0xf);
+                int rem = (int) (zl & 0xf);
+                zl = (zh << 60) | (zl >>> 4);
+                zh = (zh >>> 4) ^ (LAST4[rem] << 48) ^ hh[n];
+                zl ^= hl[n];
+            }
+            x0 = zh;
+            x1 = zl;
+        }
+
+        // Computes the tag: GHASH of the lengths, xored with E(J0).
+        byte[] tag()
+        {
+            checkOpen();
+            finished = true;
+            flushPending();
+            multiplyH(aadLength * 8, textLength * 8);
+            byte[] tag = new byte[16];
+            engine.encryptBlock(j0, 0, tag, 0);
+            for (int i = 0; i < 8; i++)
+            {
+                tag[i] ^= (byte) (x0 >>> (56 - 8 * i));
+                tag[8 + i] ^= (byte) (x1 >>> (56 - 8 * i));
+            }
+            return tag;
+        }
+
+        void record(boolean encrypt)
+        {
+            AesMetrics.record(AesMetrics.Mode.GCM, encrypt, keyId, textLength, start);
+        }
+
+        private void checkOpen()
+        {
+            if (finished)
+                throw new IllegalStateException("already finished");
+        }
+    }
+
+    public final class Encryptor extends Operation
+    {
+        private Encryptor(byte[] iv)
+        {
+            super(iv);
+        }
+
+        // Encrypts len bytes into out[outOff] and returns len. The cipher
+        // text is hashed chunk by chunk as it is made (see crypt).
+        public int update(byte[] in, int inOff, int len, byte[] out, int outOff)
+        {
+            startText(len);
+            crypt(in, inOff, out, outOff, len, true);
+            return len;
+        }
+
+        // Returns the 16 byte tag.
+        public byte[] finish()
+        {
+            byte[] tag = tag();
+            record(true);
+            return tag;
+        }
+    }
+
+    public final class Decryptor extends Operation
+    {
+        private byte[] buffer = new byte[256];
+        private int length;
+
+        private Decryptor(byte[] iv)
+        {
+            super(iv);
+        }
+
+        // Takes more cipher text. Nothing is decrypted until finish.
+        public void update(byte[] in, int inOff, int len)
+        {
+            startText(len);
+            hash(in, inOff, len);
+            if (length + len > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, length + len));
+            System.arraycopy(in, inOff, buffer, length, len);
+            length += len;
+        }
+
+        // Checks the tag and only then decrypts and returns the plain text.
+        public byte[] finish(byte[] tag) throws AEADBadTagException
+        {
+            startText(0);
+            byte[] expected = tag();
+            if (!MessageDigest.isEqual(expected, tag))
+            {
+                Arrays.fill(buffer, (byte) 0);
+                throw new AEADBadTagException("tag mismatch");
+            }
+            byte[] plainText = Arrays.copyOf(buffer, length);
+            Arrays.fill(buffer, (byte) 0);
+            crypt(plainText, 0, plainText, 0, length, false);
+            record(false);
+            return plainText;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+    An AesInputStream reads cipher text written by an AesOutputStream
+    and returns the original bytes. The cipher text is read into a
+    fixed size buffer, and each read decrypts whatever whole blocks the
+    underlying stream has delivered (up to a buffer), so like any
+    InputStream it only waits until some data is there, never for a
+    full buffer.
+    The last block holds the PKCS#7 padding, but a stream can only tell
+    which block is last once it reaches the end. So the block holding
+    the last byte read so far is always kept back and decrypted
+    together with what comes after it.
+ */
+public class AesInputStream extends FilterInputStream
+{
+    private final BlockCipherEngine engine;
+    private final byte[] buf;
+    // buf[pos, limit) is plain text ready to be read.
+    // buf[limit, have) is cipher text not decrypted yet.
+    private int pos, limit, have;
+    private boolean eof, closed;
+
+    public AesInputStream(InputStream in, AesKey key)
+    {
+        this(in, key, Engine.defaultEngine(), AesOutputStream.DEFAULT_BUFFER_SIZE);
+    }
+    // The buffer size is rounded down to a whole number of blocks and
+    // must be at least two blocks (one is always kept back).
+    public AesInputStream(InputStream in, AesKey key, Engine engine, int bufferSize)
+    {
+        super(in);
+        if (bufferSize < 32)
+            throw new IllegalArgumentException("buffer must hold at least two blocks");
+        this.engine = key.engine(engine);
+        this.buf = new byte[bufferSize & ~15];
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (pos == limit && !fill())
+            return -1;
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (pos == limit && !fill())
+            return -1;
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = 0;
+        while (skipped < n && (pos < limit || fill()))
+        {
+            int k = (int) Math.min(n - skipped, limit - pos);
+            pos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        ensureOpen();
+        return limit - pos;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit)
+    {
+    }
+
+    @Override
+    public void reset() throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        in.close();
+    }
+
+    /*
+        Decrypts the next plain text: reads until at least one block
+        can be released, or the data ends. Returns false once the end
+        of the data has been reached.
+     */
+    private boolean fill() throws IOException
+    {
+        ensureOpen();
+        if (eof)
+            return false;
+        // Move the cipher text that was kept back to the front.
+        System.arraycopy(buf, limit, buf, 0, have - limit);
+        have -= limit;
+        pos = limit = 0;
+        while (true)
+        {
+            // There is always room: at most one block is kept back.
+            int n = in.read(buf, have, buf.length - have);
+            if (n < 0)
+            {
+                eof = true;
+                break;
+            }
+            have += n;
+            // Every block before the one that holds the last byte.
+            int blocks = (have - 1) / 16;
+            if (n > 0 && blocks > 0)
+            {
+                limit = 16 * blocks;
+                engine.decryptBlocks(buf, 0, buf, 0, blocks);
+                return true;
+            }
+        }
+        if (have == 0 || (have & 15) != 0)
+            throw new IOException("cipher text is not a whole number of blocks");
+        engine.decryptBlocks(buf, 0, buf, 0, have / 16);
+        limit = unpaddedLength(buf, have);
+        have = limit;
+        return limit > 0;
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+    }
+
+    /*
+        Checks the PKCS#7 padding at the end of the first len bytes of
+        b and returns the length without it.
+     */
+    static int unpaddedLength(byte[] b, int len) throws IOException
+    {
+        try
+        {
+            return Padding.PKCS7.unpaddedLength(b, 0, len);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
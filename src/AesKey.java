@@ -0,0 +1,119 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.security.auth.Destroyable;
+
+/*
+    An AesKey holds the key schedule (11, 13 or 15 round keys for
+    128, 192 or 256 bit keys) for one hex key. Building it runs the
+    key expansion once, so a key that is used for many blocks or many
+    messages only pays for the expansion a single time.
+    The round keys are never changed after construction, so one
+    AesKey can be shared freely between threads.
+    The block engine for each Engine type is also built only once per
+    key, the first time it is asked for.
+    destroy() overwrites the round keys (and the key material held by
+    its engines) with zeros. The key must not be in use when that
+    happens; afterwards it can no longer be used.
+ */
+public final class AesKey implements Destroyable
+{
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final long id = NEXT_ID.incrementAndGet();
+    private final int[][][] roundKeys;
+    // The same round keys packed as 32-bit words, one word per
+    // column of each round key (row 0 in the high byte). This is
+    // the layout the ByteEngine reads.
+    private final int[] words;
+    private final AtomicReferenceArray<BlockCipherEngine> engines =
+            new AtomicReferenceArray<>(Engine.values().length);
+    private volatile boolean destroyed;
+
+    // The key is read in as a hex string, the same form that
+    // AES.encrypt and AES.decrypt accept: 32, 48 or 64 digits for
+    // AES-128, AES-192 or AES-256.
+    public AesKey(String key)
+    {
+        if (key == null || (key.length() != 32 && key.length() != 48 && key.length() != 64))
+            throw new IllegalArgumentException("key must be 32, 48 or 64 hex digits");
+        long start = AesMetrics.start();
+        roundKeys = AES.getRoundKeys(key);
+        words = new int[roundKeys.length * 4];
+        for (int r = 0; r < roundKeys.length; r++)
+        {
+            for (int c = 0; c < 4; c++)
+                words[4 * r + c] = roundKeys[r][0][c] << 24 | roundKeys[r][1][c] << 16
+                        | roundKeys[r][2][c] << 8 | roundKeys[r][3][c];
+        }
+        AesMetrics.keySetup(start);
+    }
+    // A number that tells this key apart from the others in AesMetrics.
+    // It is only a counter and says nothing about the key itself.
+    public long id()
+    {
+        return id;
+    }
+    // The next id, for other kinds of key (OffHeapKeyStore).
+    static long nextId()
+    {
+        return NEXT_ID.incrementAndGet();
+    }
+    // The round keys are only handed out inside this package and
+    // must be treated as read only.
+    int[][][] roundKeys()
+    {
+        return roundKeys;
+    }
+    int[] words()
+    {
+        return words;
+    }
+    // Number of rounds (one less than the number of round keys).
+    int rounds()
+    {
+        return roundKeys.length - 1;
+    }
+    // Returns the engine of the given type for this key. If two threads
+    // ask at the same time both may build one, but only one is kept;
+    // the other is destroyed, so its key material does not linger.
+    BlockCipherEngine engine(Engine type)
+    {
+        if (destroyed)
+            throw new IllegalStateException("key has been destroyed");
+        BlockCipherEngine e = engines.get(type.ordinal());
+        if (e == null)
+        {
+            BlockCipherEngine built = type.keySetup(this);
+            if (!engines.compareAndSet(type.ordinal(), null, built))
+                built.destroy();
+            e = engines.get(type.ordinal());
+        }
+        return e;
+    }
+
+    @Override
+    public void destroy()
+    {
+        destroyed = true;
+        AesMetrics.keyDestroyed(id);
+        for (int[][] roundKey : roundKeys)
+        {
+            for (int[] row : roundKey)
+                Arrays.fill(row, 0);
+        }
+        Arrays.fill(words, 0);
+        for (int i = 0; i < engines.length(); i++)
+        {
+            BlockCipherEngine e = engines.get(i);
+            if (e != null)
+                e.destroy();
+        }
+    }
+
+    @Override
+    public boolean isDestroyed()
+    {
+        return destroyed;
+    }
+}
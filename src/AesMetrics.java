@@ -0,0 +1,319 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+    Optional counters and latency histograms for the encrypt and
+    decrypt paths. They are off by default; turn them on with
+    enable(true) or -Daes.metrics=true (-Daes.metrics=jmx also
+    registers the MBean, see AesMetricsMBean).
+    What is recorded:
+        - for every mode and direction: calls, bytes, blocks and a
+          LatencyHistogram of the call times,
+        - bytes and blocks per key (by AesKey.id(), for up to MAX_KEYS
+          keys; the bytes of any further keys are only counted in the
+          totals). A key's numbers are dropped when it is destroyed
+          (AesKey.destroy, OffHeapKeyStore.Key.close), so the keys
+          counted are the live ones,
+        - the time of every key expansion,
+        - for every call that is split over a ForkJoinPool, the wall
+          time and the time the pool threads were busy,
+        - the KeyCache hits and misses (read from KeyCache.shared()).
+    A Listener can be set to see every call as well, for example to
+    feed another metrics library.
+    The call sites do
+        long start = AesMetrics.start();
+        ... the work ...
+        AesMetrics.record(mode, encrypt, keyId, bytes, start);
+    When metrics are off, start() is one read of a volatile field and
+    record returns straight away, so they can stay in the hot paths.
+ */
+public final class AesMetrics implements AesMetricsMBean
+{
+    public enum Mode
+    {
+        STRING, BLOCK, ECB, CTR, CBC, GCM, FILE
+    }
+
+    public interface Listener
+    {
+        // Called after every recorded call. CTR and FILE are always
+        // reported as encrypt, since both directions are the same.
+        void operation(Mode mode, boolean encrypt, long keyId, long bytes, long nanos);
+
+        default void keySetup(long nanos)
+        {
+        }
+    }
+
+    static final int MAX_KEYS = 1024;
+    // start() returns this when metrics are off.
+    static final long OFF = Long.MIN_VALUE;
+
+    private static final class Stats
+    {
+        final LongAdder calls = new LongAdder(), bytes = new LongAdder(), blocks = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        void add(long bytes, long nanos)
+        {
+            calls.increment();
+            this.bytes.add(bytes);
+            blocks.add((bytes + 15) >>> 4);
+            latency.record(nanos);
+        }
+    }
+
+    private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty("aes.metrics"))
+            || "jmx".equalsIgnoreCase(System.getProperty("aes.metrics"));
+    private static volatile Listener listener;
+
+    // Indexed by 2 * mode.ordinal() (encrypt) and + 1 (decrypt).
+    private static final Stats[] OPERATIONS = new Stats[2 * Mode.values().length];
+    private static final Map<Long, Stats> KEYS = new ConcurrentHashMap<>();
+    private static final LatencyHistogram KEY_SETUP = new LatencyHistogram();
+    private static final LongAdder PARALLEL_CALLS = new LongAdder(), PARALLEL_BUSY = new LongAdder(),
+            PARALLEL_AVAILABLE = new LongAdder();
+    private static final AesMetrics INSTANCE = new AesMetrics();
+
+    static
+    {
+        for (int i = 0; i < OPERATIONS.length; i++)
+            OPERATIONS[i] = new Stats();
+        if ("jmx".equalsIgnoreCase(System.getProperty("aes.metrics")))
+            registerMBean();
+    }
+
+    private AesMetrics()
+    {
+    }
+
+    public static boolean enabled()
+    {
+        return enabled;
+    }
+
+    public static void enable(boolean on)
+    {
+        enabled = on;
+    }
+
+    public static void setListener(Listener l)
+    {
+        listener = l;
+    }
+
+    // Registers the MBean with the platform MBean server (once).
+    public static synchronized void registerMBean()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("aes:type=AesMetrics");
+            if (!server.isRegistered(name))
+                server.registerMBean(INSTANCE, name);
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The same numbers as the MBean, for use without JMX.
+    public static AesMetricsMBean view()
+    {
+        return INSTANCE;
+    }
+
+    static long start()
+    {
+        return enabled ? System.nanoTime() : OFF;
+    }
+
+    static void record(Mode mode, boolean encrypt, long keyId, long bytes, long start)
+    {
+        if (start == OFF)
+            return;
+        long nanos = System.nanoTime() - start;
+        OPERATIONS[2 * mode.ordinal() + (encrypt ? 0 : 1)].add(bytes, nanos);
+        Stats key = KEYS.get(keyId);
+        if (key == null && KEYS.size() < MAX_KEYS)
+            key = KEYS.computeIfAbsent(keyId, id -> new Stats());
+        if (key != null)
+            key.add(bytes, nanos);
+        Listener l = listener;
+        if (l != null)
+            l.operation(mode, encrypt, keyId, bytes, nanos);
+    }
+
+    // Drops the numbers of a key that has been destroyed.
+    static void keyDestroyed(long keyId)
+    {
+        KEYS.remove(keyId);
+    }
+
+    static void keySetup(long start)
+    {
+        if (start == OFF)
+            return;
+        long nanos = System.nanoTime() - start;
+        KEY_SETUP.record(nanos);
+        Listener l = listener;
+        if (l != null)
+            l.keySetup(nanos);
+    }
+
+    // busyNanos is the time all the pool threads spent on the call.
+    static void parallel(long wallNanos, long busyNanos, int parallelism)
+    {
+        PARALLEL_CALLS.increment();
+        PARALLEL_BUSY.add(busyNanos);
+        PARALLEL_AVAILABLE.add(wallNanos * parallelism);
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean on)
+    {
+        enabled = on;
+    }
+
+    @Override
+    public long getCalls()
+    {
+        long n = 0;
+        for (Stats s : OPERATIONS)
+            n += s.calls.sum();
+        return n;
+    }
+
+    @Override
+    public long getBytes()
+    {
+        long n = 0;
+        for (Stats s : OPERATIONS)
+            n += s.bytes.sum();
+        return n;
+    }
+
+    @Override
+    public long getBlocks()
+    {
+        long n = 0;
+        for (Stats s : OPERATIONS)
+            n += s.blocks.sum();
+        return n;
+    }
+
+    @Override
+    public String[] getOperations()
+    {
+        List<String> lines = new ArrayList<>();
+        for (Mode mode : Mode.values())
+        {
+            for (int d = 0; d < 2; d++)
+            {
+                Stats s = OPERATIONS[2 * mode.ordinal() + d];
+                if (s.calls.sum() > 0)
+                    lines.add(String.format("%s %s: calls=%d bytes=%d blocks=%d %s", mode,
+                            d == 0 ? "encrypt" : "decrypt", s.calls.sum(), s.bytes.sum(), s.blocks.sum(),
+                            s.latency));
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public long getKeySetups()
+    {
+        return KEY_SETUP.count();
+    }
+
+    @Override
+    public double getKeySetupP99Micros()
+    {
+        return KEY_SETUP.percentile(99) / 1e3;
+    }
+
+    @Override
+    public String[] getTopKeys()
+    {
+        List<Map.Entry<Long, Stats>> keys = new ArrayList<>(KEYS.entrySet());
+        keys.sort(Comparator.comparingLong((Map.Entry<Long, Stats> e) -> e.getValue().bytes.sum()).reversed());
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Long, Stats> e : keys.subList(0, Math.min(20, keys.size())))
+        {
+            Stats s = e.getValue();
+            lines.add(String.format("key %d: calls=%d bytes=%d blocks=%d", e.getKey(), s.calls.sum(),
+                    s.bytes.sum(), s.blocks.sum()));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public long getKeyCacheHits()
+    {
+        return KeyCache.shared().hits();
+    }
+
+    @Override
+    public long getKeyCacheMisses()
+    {
+        return KeyCache.shared().misses();
+    }
+
+    @Override
+    public long getKeyCacheEvictions()
+    {
+        return KeyCache.shared().evictions();
+    }
+
+    @Override
+    public double getKeyCacheHitRate()
+    {
+        long hits = getKeyCacheHits(), total = hits + getKeyCacheMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getParallelCalls()
+    {
+        return PARALLEL_CALLS.sum();
+    }
+
+    @Override
+    public double getParallelUtilization()
+    {
+        long available = PARALLEL_AVAILABLE.sum();
+        return available == 0 ? 0 : (double) PARALLEL_BUSY.sum() / available;
+    }
+
+    @Override
+    public void reset()
+    {
+        for (Stats s : OPERATIONS)
+        {
+            s.calls.reset();
+            s.bytes.reset();
+            s.blocks.reset();
+            s.latency.reset();
+        }
+        KEYS.clear();
+        KEY_SETUP.reset();
+        PARALLEL_CALLS.reset();
+        PARALLEL_BUSY.reset();
+        PARALLEL_AVAILABLE.reset();
+    }
+}
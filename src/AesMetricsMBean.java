@@ -0,0 +1,44 @@
+/*
+    The JMX view of AesMetrics, registered as "aes:type=AesMetrics" by
+    AesMetrics.registerMBean(). Times are in microseconds.
+ */
+public interface AesMetricsMBean
+{
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getCalls();
+
+    long getBytes();
+
+    long getBlocks();
+
+    // One line per mode and direction that has been used: calls, bytes,
+    // blocks and the latency percentiles.
+    String[] getOperations();
+
+    long getKeySetups();
+
+    double getKeySetupP99Micros();
+
+    // The keys that processed the most bytes, largest first, by AesKey.id().
+    String[] getTopKeys();
+
+    long getKeyCacheHits();
+
+    long getKeyCacheMisses();
+
+    long getKeyCacheEvictions();
+
+    double getKeyCacheHitRate();
+
+    long getParallelCalls();
+
+    // Time the pool threads spent working, divided by the time they
+    // could have worked (wall time times parallelism), over all
+    // parallel calls.
+    double getParallelUtilization();
+
+    void reset();
+}
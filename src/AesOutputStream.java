@@ -0,0 +1,119 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+    An AesOutputStream encrypts everything written to it and passes the
+    cipher text on to the wrapped stream. Each 16 byte block is
+    encrypted on its own, like AES.encrypt, but the data is raw bytes
+    (not hex) and goes through a fixed size buffer, so any amount of
+    data can be encrypted without holding it all in memory.
+    When the stream is closed the last block is filled in with PKCS#7
+    padding: n bytes each with the value n, where n is 1 to 16. So the
+    output is always a whole number of blocks, and AesInputStream can
+    recover the exact length of the original data.
+ */
+public class AesOutputStream extends FilterOutputStream
+{
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final BlockCipherEngine engine;
+    private final byte[] buf;
+    private int count;
+    private boolean closed;
+
+    public AesOutputStream(OutputStream out, AesKey key)
+    {
+        this(out, key, Engine.defaultEngine(), DEFAULT_BUFFER_SIZE);
+    }
+    // The buffer size is rounded down to a whole number of blocks.
+    public AesOutputStream(OutputStream out, AesKey key, Engine engine, int bufferSize)
+    {
+        super(out);
+        if (bufferSize < 16)
+            throw new IllegalArgumentException("buffer must hold at least one block");
+        this.engine = key.engine(engine);
+        this.buf = new byte[bufferSize & ~15];
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureOpen();
+        buf[count++] = (byte) b;
+        if (count == buf.length)
+            writeBlocks();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        while (len > 0)
+        {
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buf.length)
+                writeBlocks();
+        }
+    }
+
+    // Writes out every whole block held so far. A part block stays
+    // in the buffer until more data or close() completes it.
+    @Override
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        writeBlocks();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            count = pad(buf, count);
+            writeBlocks();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void writeBlocks() throws IOException
+    {
+        int whole = count & ~15;
+        if (whole == 0)
+            return;
+        engine.encryptBlocks(buf, 0, buf, 0, whole / 16);
+        out.write(buf, 0, whole);
+        count -= whole;
+        System.arraycopy(buf, whole, buf, 0, count);
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+    }
+
+    /*
+        Adds PKCS#7 padding after the first len bytes of b and returns
+        the padded length. The buffer must have room for the padding,
+        which is at most one block.
+     */
+    static int pad(byte[] b, int len)
+    {
+        return Padding.PKCS7.pad(b, len);
+    }
+}
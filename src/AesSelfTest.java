@@ -0,0 +1,380 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+    Checks that the key schedules, every engine and every mode give the
+    right answers. Like AesBenchmark it needs nothing but the JDK:
+        javac -d out src/*.java
+        java -cp out AesSelfTest
+    Each failed check prints a line, and if any failed the exit status
+    is 1, so it can gate a build or a deployment. The checks are:
+        - the key expansions of FIPS-197 appendix A (the first and the
+          last word of the AES-128, -192 and -256 schedules);
+        - the example vectors of FIPS-197 appendix C for the three key
+          sizes, on every Engine (one block, and a run of blocks at odd
+          offsets so the engines that do several blocks at once are
+          covered too) and on AES.cipher and AES.invCipher;
+        - ECB with PKCS#7 padding, CTR (across a carry out of the low
+          64 counter bits), CBC and GCM against javax.crypto, for every
+          engine and key size, on random keys and data;
+        - that the constant time engines (BITSLICED, and VECTOR when it
+          is available) take the same time for all zero and for random
+          input: Welch's t statistic of the two sets of times has to
+          stay under 4.5. A real leak shows on every try and noise does
+          not, so each engine gets three tries. TTABLE is measured too,
+          for comparison, but not checked;
+        - that the engines (every one but REFERENCE), AES.cipherInPlace
+          and invCipherInPlace and the OffHeapKeyStore keys allocate
+          nothing per block once the JIT has compiled them, counted
+          with the thread's allocated bytes from ThreadMXBean.
+ */
+public class AesSelfTest
+{
+    private static final String PLAIN_TEXT = "00112233445566778899aabbccddeeff";
+    // FIPS-197 appendix C: the key is 00 01 02 ... for 16, 24 or 32 bytes.
+    private static final String[][] APPENDIX_C =
+            {
+                    {"000102030405060708090a0b0c0d0e0f", "69c4e0d86a7b0430d8cdb78070b4c55a"},
+                    {"000102030405060708090a0b0c0d0e0f1011121314151617", "dda97ca4864cdfe06eaf70a0ec0d7191"},
+                    {"000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+                            "8ea2b7ca516745bfeafc49904b496089"},
+            };
+    // FIPS-197 appendix A: the key, the first word made by the
+    // expansion (w[Nk]) and the last one.
+    private static final String[][] APPENDIX_A =
+            {
+                    {"2b7e151628aed2a6abf7158809cf4f3c", "a0fafe17", "b6630ca6"},
+                    {"8e73b0f7da0e6452c810f32b809079e562f8ead2522c6b7b", "fe0c91f7", "01002202"},
+                    {"603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4", "9ba35411", "706c631e"},
+            };
+    private static final int[] LENGTHS = {0, 1, 15, 16, 17, 100, 1000, 70_000};
+    private static final double T_LIMIT = 4.5;
+    private static final int TIMING_SAMPLES = 20_000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static int checks, failures;
+
+    public static void main(String[] args) throws Exception
+    {
+        keyExpansion();
+        vectors();
+        modes();
+        constantTime();
+        allocation();
+        System.out.printf("%d checks, %d failed%n", checks, failures);
+        if (failures != 0)
+            System.exit(1);
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        checks++;
+        if (!ok)
+        {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    private static void keyExpansion()
+    {
+        for (String[] v : APPENDIX_A)
+        {
+            AesKey key = new AesKey(v[0]);
+            int[] w = key.words();
+            int nk = v[0].length() / 8;
+            int bits = 32 * nk;
+            check(w.length == 4 * (key.rounds() + 1) && key.rounds() == nk + 6, "AES-" + bits + " rounds");
+            check(w[nk] == Integer.parseUnsignedInt(v[1], 16), "AES-" + bits + " w[" + nk + "]");
+            check(w[w.length - 1] == Integer.parseUnsignedInt(v[2], 16), "AES-" + bits + " last word");
+        }
+    }
+
+    private static void vectors()
+    {
+        byte[] plain = Hex.decode(PLAIN_TEXT);
+        for (String[] v : APPENDIX_C)
+        {
+            AesKey key = new AesKey(v[0]);
+            byte[] expected = Hex.decode(v[1]);
+            String size = "AES-" + 4 * v[0].length();
+
+            check(v[1].equals(stateToHex(AES.cipher(PLAIN_TEXT, key))), size + " AES.cipher");
+            check(PLAIN_TEXT.equals(stateToHex(AES.invCipher(v[1], key))), size + " AES.invCipher");
+            check(v[1].equals(stateToHex(AES.cipher(PLAIN_TEXT, v[0]))), size + " AES.cipher(String key)");
+
+            for (Engine engine : Engine.values())
+            {
+                String name = size + " " + engine;
+                BlockCipherEngine e = key.engine(engine);
+                byte[] b = plain.clone();
+                e.encryptBlock(b, 0, b, 0);
+                check(Arrays.equals(b, expected), name + " encryptBlock");
+                e.decryptBlock(b, 0, b, 0);
+                check(Arrays.equals(b, plain), name + " decryptBlock");
+
+                // 37 blocks: more than one batch of the multi-block
+                // engines, with a part batch at the end.
+                int blocks = 37;
+                byte[] in = new byte[3 + 16 * blocks], out = new byte[5 + 16 * blocks];
+                for (int i = 0; i < blocks; i++)
+                    System.arraycopy(plain, 0, in, 3 + 16 * i, 16);
+                e.encryptBlocks(in, 3, out, 5, blocks);
+                boolean same = true;
+                for (int i = 0; i < blocks; i++)
+                    same &= Arrays.equals(out, 5 + 16 * i, 21 + 16 * i, expected, 0, 16);
+                check(same, name + " encryptBlocks");
+                e.decryptBlocks(out, 5, out, 5, blocks);
+                check(Arrays.equals(out, 5, out.length, in, 3, in.length), name + " decryptBlocks");
+            }
+        }
+    }
+
+    // The state is state[row][column]; byte i of the block is in row
+    // i % 4 of column i / 4.
+    private static String stateToHex(int[][] state)
+    {
+        byte[] b = new byte[16];
+        for (int i = 0; i < 16; i++)
+            b[i] = (byte) state[i & 3][i >> 2];
+        return Hex.encode(b);
+    }
+
+    private static void modes() throws Exception
+    {
+        Random random = new Random(197);
+        for (int keyBytes = 16; keyBytes <= 32; keyBytes += 8)
+        {
+            byte[] k = new byte[keyBytes];
+            random.nextBytes(k);
+            AesKey key = new AesKey(Hex.encode(k));
+            SecretKeySpec spec = new SecretKeySpec(k, "AES");
+            for (Engine engine : Engine.values())
+            {
+                String name = "AES-" + 8 * keyBytes + " " + engine;
+                for (int len : LENGTHS)
+                {
+                    // The reference engine is far too slow for the long message.
+                    if (engine == Engine.REFERENCE && len > 1000)
+                        continue;
+                    byte[] data = new byte[len];
+                    random.nextBytes(data);
+                    ecb(key, engine, spec, data, name + " ECB " + len);
+                    ctr(key, engine, spec, data, random, name + " CTR " + len);
+                    cbc(key, engine, spec, Arrays.copyOf(data, len & ~15), random, name + " CBC " + len);
+                    gcm(key, engine, spec, data, random, name + " GCM " + len);
+                }
+            }
+        }
+    }
+
+    private static void ecb(AesKey key, Engine engine, SecretKeySpec spec, byte[] data, String name)
+            throws Exception
+    {
+        Cipher jce = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        jce.init(Cipher.ENCRYPT_MODE, spec);
+        AesEcb ecb = new AesEcb(key, engine);
+        byte[] c = ecb.encrypt(data);
+        check(Arrays.equals(c, jce.doFinal(data)), name + " encrypt");
+        check(Arrays.equals(ecb.decrypt(c), data), name + " decrypt");
+    }
+
+    private static void ctr(AesKey key, Engine engine, SecretKeySpec spec, byte[] data, Random random,
+                            String name) throws Exception
+    {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        // The low 64 bits of the counter wrap after a few blocks.
+        Arrays.fill(iv, 8, 15, (byte) 0xff);
+        Cipher jce = Cipher.getInstance("AES/CTR/NoPadding");
+        jce.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(iv));
+        AesCtr ctr = new AesCtr(key, iv, engine, ForkJoinPool.commonPool());
+        byte[] c = ctr.process(data);
+        check(Arrays.equals(c, jce.doFinal(data)), name + " encrypt");
+        check(Arrays.equals(ctr.process(c), data), name + " decrypt");
+        // A slice from the middle, given its position in the message.
+        if (data.length > 40)
+        {
+            byte[] part = new byte[data.length - 40];
+            ctr.process(data, 23, part, 0, part.length, 23);
+            check(Arrays.equals(part, 0, part.length, c, 23, data.length - 17), name + " at position");
+        }
+    }
+
+    private static void cbc(AesKey key, Engine engine, SecretKeySpec spec, byte[] data, Random random,
+                            String name) throws Exception
+    {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        Cipher jce = Cipher.getInstance("AES/CBC/NoPadding");
+        jce.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(iv));
+        // A small chunk size so the parallel decryption is split up.
+        AesCbc cbc = new AesCbc(key, engine, ForkJoinPool.commonPool(), 7);
+        byte[] c = new byte[data.length];
+        cbc.encrypt(iv, data, 0, c, 0, data.length);
+        check(Arrays.equals(c, jce.doFinal(data)), name + " encrypt");
+        byte[] p = new byte[data.length];
+        cbc.decrypt(iv, c, 0, p, 0, data.length);
+        check(Arrays.equals(p, data), name + " decrypt");
+    }
+
+    private static void gcm(AesKey key, Engine engine, SecretKeySpec spec, byte[] data, Random random,
+                            String name) throws Exception
+    {
+        byte[] iv = new byte[12], aad = new byte[random.nextInt(40)];
+        random.nextBytes(iv);
+        random.nextBytes(aad);
+        Cipher jce = Cipher.getInstance("AES/GCM/NoPadding");
+        jce.init(Cipher.ENCRYPT_MODE, spec, new GCMParameterSpec(128, iv));
+        jce.updateAAD(aad);
+        AesGcm gcm = new AesGcm(key, engine);
+        byte[] c = gcm.encrypt(iv, aad, data);
+        check(Arrays.equals(c, jce.doFinal(data)), name + " encrypt");
+        check(Arrays.equals(gcm.decrypt(iv, aad, c), data), name + " decrypt");
+        c[c.length - 1] ^= 1;
+        try
+        {
+            gcm.decrypt(iv, aad, c);
+            check(false, name + " forged tag accepted");
+        }
+        catch (AEADBadTagException e)
+        {
+            check(true, name + " forged tag");
+        }
+    }
+
+    private static void constantTime()
+    {
+        AesKey key = new AesKey(APPENDIX_C[0][0]);
+        for (Engine engine : new Engine[] {Engine.BITSLICED, Engine.VECTOR})
+        {
+            if (engine == Engine.VECTOR && !Engine.vectorAvailable())
+                continue;
+            double t = 0;
+            for (int attempt = 0; attempt < 3; attempt++)
+            {
+                t = timing(key.engine(engine), TIMING_SAMPLES)[2];
+                if (Math.abs(t) < T_LIMIT)
+                    break;
+            }
+            System.out.printf("timing %s t = %.2f%n", engine, t);
+            check(Math.abs(t) < T_LIMIT, engine + " running time depends on the data");
+        }
+        System.out.printf("timing TTABLE t = %.2f (not checked)%n",
+                timing(key.engine(Engine.TTABLE), TIMING_SAMPLES)[2]);
+    }
+
+    private static void allocation()
+    {
+        AesKey key = new AesKey(APPENDIX_C[2][0]);
+        byte[] b = new byte[16 * 64];
+        for (Engine engine : Engine.values())
+        {
+            // REFERENCE is AES.cipher, which makes new arrays by design.
+            if (engine == Engine.REFERENCE || (engine == Engine.VECTOR && !Engine.vectorAvailable()))
+                continue;
+            BlockCipherEngine e = key.engine(engine);
+            allocation(engine + " encryptBlock", 1, () -> e.encryptBlock(b, 0, b, 0));
+            allocation(engine + " decryptBlock", 1, () -> e.decryptBlock(b, 0, b, 0));
+            allocation(engine + " encryptBlocks", 64, () -> e.encryptBlocks(b, 0, b, 0, 64));
+            allocation(engine + " decryptBlocks", 64, () -> e.decryptBlocks(b, 0, b, 0, 64));
+        }
+        int[][] state = new int[4][4];
+        allocation("AES.cipherInPlace", 1, () -> AES.cipherInPlace(state, key));
+        allocation("AES.invCipherInPlace", 1, () -> AES.invCipherInPlace(state, key));
+        try (OffHeapKeyStore store = new OffHeapKeyStore(1))
+        {
+            OffHeapKeyStore.Key stored = store.add(APPENDIX_C[2][0]);
+            allocation("off-heap key encryptBlocks", 64, () -> stored.encryptBlocks(b, 0, b, 0, 64));
+            allocation("off-heap key decryptBlocks", 64, () -> stored.decryptBlocks(b, 0, b, 0, 64));
+        }
+    }
+
+    /*
+        Checks that op allocates nothing. It is run 20000 times first so
+        the JIT compiles it (the interpreter and C1 may allocate where
+        C2 does not), then counted in rounds of 2000 calls until a round
+        allocates nothing; the compiler thread can still be busy on the
+        first rounds, so ten rounds are allowed.
+     */
+    private static void allocation(String name, int blocks, Runnable op)
+    {
+        for (int i = 0; i < 20_000; i++)
+            op.run();
+        long least = Long.MAX_VALUE;
+        for (int round = 0; round < 10 && least != 0; round++)
+        {
+            long allocated = THREADS.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 2_000; i++)
+                op.run();
+            least = Math.min(least, THREADS.getCurrentThreadAllocatedBytes() - allocated);
+        }
+        check(least == 0, String.format("%s allocates %.3f bytes per block", name, least / 2_000.0 / blocks));
+    }
+
+    /*
+        Times batches of 64 block encryptions with all zero input and
+        with random input, picked at random for each batch so that any
+        drift in the machine's speed hits both classes alike, and
+        returns the mean time of each class and Welch's t statistic for
+        the difference. The slowest tenth of the batches (interrupts,
+        garbage collections, JIT compiles) is dropped before the means
+        are taken, as dudect does.
+     */
+    static double[] timing(BlockCipherEngine e, int samples)
+    {
+        Random random = new Random(2);
+        // The inputs are made beforehand and copied in the same way for
+        // both classes, so only the data differs between them.
+        byte[] zeros = new byte[16 * 64];
+        byte[][] randoms = new byte[64][16 * 64];
+        for (byte[] r : randoms)
+            random.nextBytes(r);
+        byte[] b = new byte[16 * 64];
+        long[] times = new long[samples];
+        boolean[] zero = new boolean[samples];
+        for (int s = -samples / 4; s < samples; s++)
+        {
+            boolean z = random.nextBoolean();
+            System.arraycopy(z ? zeros : randoms[random.nextInt(randoms.length)], 0, b, 0, b.length);
+            long t = System.nanoTime();
+            e.encryptBlocks(b, 0, b, 0, 64);
+            t = System.nanoTime() - t;
+            if (s < 0)
+                continue; // warm up
+            times[s] = t;
+            zero[s] = z;
+        }
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long cutoff = sorted[samples * 9 / 10];
+        double[] sum = new double[2], squares = new double[2];
+        long[] count = new long[2];
+        for (int s = 0; s < samples; s++)
+        {
+            if (times[s] > cutoff)
+                continue;
+            int c = zero[s] ? 0 : 1;
+            sum[c] += times[s];
+            squares[c] += (double) times[s] * times[s];
+            count[c]++;
+        }
+        double[] mean = new double[2], var = new double[2];
+        for (int c = 0; c < 2; c++)
+        {
+            mean[c] = sum[c] / count[c];
+            var[c] = squares[c] / count[c] - mean[c] * mean[c];
+        }
+        double t = (mean[0] - mean[1]) / Math.sqrt(var[0] / count[0] + var[1] / count[1]);
+        return new double[] {mean[0], mean[1], t};
+    }
+}
@@ -0,0 +1,328 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    AesService takes many small encrypt and decrypt requests from many
+    threads and runs them in batches. Each request returns a
+    CompletableFuture straight away; a fixed number of worker threads
+    take the requests off a bounded queue, put all the messages that
+    arrived together into one array and run a single encryptBlocks (or
+    decryptBlocks) call over it, so the engines that work on several
+    blocks at once (BITSLICED, VECTOR, JCE) get long runs of blocks
+    instead of one at a time, and the per call costs are paid once per
+    batch.
+    The messages are the same as those of AesEcb.encrypt(byte[]) and
+    AesEcb.decrypt(byte[]): PKCS#7 padded ECB.
+    How long a request can wait for others to join its batch is
+    bounded: a worker starts a batch with the oldest request, adds
+    whatever else is already queued, and only waits for more until
+    maxDelay after the first request arrived or until the batch has
+    maxBatchBlocks blocks. So at low load a request is delayed by at
+    most maxDelay, and at high load batches fill up without waiting.
+    When the queue is full, encrypt and decrypt block until there is
+    room. That is the backpressure: callers cannot queue more work than
+    the workers get through. (On virtual threads blocking is cheap.)
+    The futures are completed on the worker threads, so dependent
+    actions that are not ...Async also run there and should be short.
+    close() stops new requests, lets the workers finish the queued ones
+    and waits for them.
+ */
+public final class AesService implements AutoCloseable
+{
+    static final int DEFAULT_QUEUE_CAPACITY = 16 * 1024;
+    static final int DEFAULT_BATCH_BLOCKS = 4096;
+    static final long DEFAULT_MAX_DELAY_NANOS = 200_000;
+    // Batch arrays up to this size are kept by the worker for the next batch.
+    private static final int KEEP_BYTES = 1 << 20;
+
+    private static final class Request
+    {
+        final byte[] data;
+        final boolean encrypt;
+        final long arrived = System.nanoTime();
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        Request(byte[] data, boolean encrypt)
+        {
+            this.data = data;
+            this.encrypt = encrypt;
+        }
+
+        int blocks()
+        {
+            return encrypt ? data.length / 16 + 1 : data.length / 16;
+        }
+    }
+
+    private final BlockCipherEngine engine;
+    private final long keyId;
+    private final BlockingQueue<Request> queue;
+    private final int maxBatchBlocks;
+    private final long maxDelayNanos;
+    private final Thread[] workers;
+    private final LongAdder requests = new LongAdder(), batches = new LongAdder();
+    private volatile boolean closed;
+
+    public AesService(AesKey key)
+    {
+        this(key, Engine.defaultEngine(), Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY,
+                DEFAULT_BATCH_BLOCKS, DEFAULT_MAX_DELAY_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    public AesService(AesKey key, Engine engine, int workers, int queueCapacity, int maxBatchBlocks,
+                      long maxDelay, TimeUnit unit)
+    {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be at least 1");
+        if (maxBatchBlocks < 1)
+            throw new IllegalArgumentException("maxBatchBlocks must be at least 1");
+        if (maxDelay < 0)
+            throw new IllegalArgumentException("maxDelay must not be negative");
+        this.engine = key.engine(engine);
+        this.keyId = key.id();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatchBlocks = maxBatchBlocks;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++)
+        {
+            Thread t = new Thread(this::work, "aes-service-" + i);
+            t.setDaemon(true);
+            this.workers[i] = t;
+            t.start();
+        }
+    }
+
+    // Pads and encrypts plainText; the result is the same as
+    // AesEcb.encrypt(plainText). Blocks while the queue is full. A null
+    // plainText throws NullPointerException straight away.
+    public CompletableFuture<byte[]> encrypt(byte[] plainText)
+    {
+        return submit(new Request(Objects.requireNonNull(plainText, "plainText"), true));
+    }
+
+    // Decrypts and removes the padding. A cipher text that is not a
+    // whole number of blocks, or has bad padding, fails its future with
+    // IllegalArgumentException.
+    public CompletableFuture<byte[]> decrypt(byte[] cipherText)
+    {
+        Request r = new Request(Objects.requireNonNull(cipherText, "cipherText"), false);
+        if (cipherText.length == 0 || (cipherText.length & 15) != 0)
+        {
+            r.result.completeExceptionally(
+                    new IllegalArgumentException("cipher text is not a whole number of blocks"));
+            return r.result;
+        }
+        return submit(r);
+    }
+
+    private CompletableFuture<byte[]> submit(Request r)
+    {
+        if (closed)
+            throw new IllegalStateException("service has been closed");
+        try
+        {
+            queue.put(r);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            r.result.completeExceptionally(e);
+            return r.result;
+        }
+        // The workers may have stopped between the check above and the
+        // put; if nobody took the request, it is failed here.
+        if (closed && queue.remove(r))
+            r.result.completeExceptionally(new IllegalStateException("service has been closed"));
+        else
+            requests.increment();
+        return r.result;
+    }
+
+    private void work()
+    {
+        List<Request> batch = new ArrayList<>();
+        byte[] buffer = new byte[0];
+        while (true)
+        {
+            Request first = poll(10_000_000);
+            if (first == null)
+            {
+                if (closed)
+                    return;
+                continue;
+            }
+            batch.add(first);
+            try
+            {
+                int blocks = first.blocks();
+                long deadline = first.arrived + maxDelayNanos;
+                while (blocks < maxBatchBlocks)
+                {
+                    Request r = queue.poll();
+                    if (r == null)
+                    {
+                        // Sleeping instead of waiting on the queue means the
+                        // callers do not have to wake this thread for every
+                        // request they add.
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || closed)
+                            break;
+                        LockSupport.parkNanos(wait);
+                        continue;
+                    }
+                    batch.add(r);
+                    blocks += r.blocks();
+                }
+                if (buffer.length < 16 * blocks)
+                    buffer = new byte[16 * blocks];
+                run(batch, buffer);
+            }
+            catch (Throwable t)
+            {
+                // Anything unexpected (an OutOfMemoryError for the batch
+                // array, say) fails the requests of this batch, but the
+                // worker carries on with the next one. Futures that
+                // were already completed keep their result.
+                for (Request r : batch)
+                    r.result.completeExceptionally(t);
+                Arrays.fill(buffer, (byte) 0);
+            }
+            batches.increment();
+            batch.clear();
+            if (buffer.length > KEEP_BYTES)
+                buffer = new byte[0];
+        }
+    }
+
+    // Waits up to nanos for a request. Only close() ends a worker, so
+    // an interrupt just ends the wait.
+    private Request poll(long nanos)
+    {
+        try
+        {
+            return queue.poll(nanos, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            return null;
+        }
+    }
+
+    // Runs the encryptions of the batch as one call and the decryptions
+    // as another, in buffer, and completes the futures.
+    private void run(List<Request> batch, byte[] buffer)
+    {
+        long start = AesMetrics.start();
+        int off = 0;
+        for (Request r : batch)
+        {
+            if (r.encrypt)
+            {
+                System.arraycopy(r.data, 0, buffer, off, r.data.length);
+                off = Padding.PKCS7.pad(buffer, off + r.data.length);
+            }
+        }
+        int encrypted = off;
+        for (Request r : batch)
+        {
+            if (!r.encrypt)
+            {
+                System.arraycopy(r.data, 0, buffer, off, r.data.length);
+                off += r.data.length;
+            }
+        }
+        try
+        {
+            engine.encryptBlocks(buffer, 0, buffer, 0, encrypted / 16);
+            engine.decryptBlocks(buffer, encrypted, buffer, encrypted, (off - encrypted) / 16);
+        }
+        catch (RuntimeException e)
+        {
+            for (Request r : batch)
+                r.result.completeExceptionally(e);
+            Arrays.fill(buffer, 0, off, (byte) 0);
+            return;
+        }
+        int encryptOff = 0, decryptOff = encrypted;
+        for (Request r : batch)
+        {
+            if (r.encrypt)
+            {
+                int len = Padding.PKCS7.paddedLength(r.data.length);
+                r.result.complete(Arrays.copyOfRange(buffer, encryptOff, encryptOff + len));
+                encryptOff += len;
+            }
+            else
+            {
+                int len = r.data.length;
+                try
+                {
+                    int n = Padding.PKCS7.unpaddedLength(buffer, decryptOff, len);
+                    r.result.complete(Arrays.copyOfRange(buffer, decryptOff, decryptOff + n));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    r.result.completeExceptionally(e);
+                }
+                decryptOff += len;
+            }
+        }
+        // The buffer held plain text; it is kept for the next batch.
+        Arrays.fill(buffer, 0, off, (byte) 0);
+        if (encrypted > 0)
+            AesMetrics.record(AesMetrics.Mode.ECB, true, keyId, encrypted, start);
+        if (off > encrypted)
+            AesMetrics.record(AesMetrics.Mode.ECB, false, keyId, off - encrypted, start);
+    }
+
+    // Number of requests taken so far.
+    public long requests()
+    {
+        return requests.sum();
+    }
+
+    // Number of batches run so far; requests() / batches() is the
+    // average batch size.
+    public long batches()
+    {
+        return batches.sum();
+    }
+
+    public int queued()
+    {
+        return queue.size();
+    }
+
+    // Stops taking requests and waits until the queued ones are done.
+    @Override
+    public void close()
+    {
+        closed = true;
+        boolean interrupted = false;
+        for (Thread t : workers)
+        {
+            while (t.isAlive())
+            {
+                try
+                {
+                    t.join();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,485 @@
+/*
+    The BitslicedEngine runs AES using only and, xor, not and shifts on
+    long words, so its running time does not depend on the key or the
+    data (the table engines read sBox entries at addresses chosen by
+    secret bytes, which can leak through the cache).
+    The idea of bitslicing is to store bit b of many bytes in one word.
+    Here a long holds one bit of 64 bytes, that is 4 blocks, and 8 longs
+    (one per bit, q[0] holds bit 0 of every byte) hold the whole 4 blocks.
+    The engine keeps two of these sets side by side, so it works on
+    8 blocks at a time.
+    Inside a long, block j uses bits 16j to 16j+15 and byte i of the
+    block (i = 4*column + row, the same order the state is read in)
+    is at bit 16j + i.
+    Then
+        subBytes     is a boolean circuit for the sBox (113 gates, from
+                     Boyar and Peralta) applied to the 8 bit words,
+        shiftRows    moves bits around inside each 16 bit lane,
+        mixColumns   rotates rows inside each 4 bit column and uses a
+                     bitsliced xTimes,
+        addRoundKey  xors with the round keys in the same layout.
+    Fewer than 8 blocks are still processed 8 at a time, so this engine
+    pays off when it is given many blocks at once (encryptBlocks).
+ */
+final class BitslicedEngine implements BlockCipherEngine
+{
+    static final int BATCH = 8;
+
+    // lane(m) repeats the 16 bit mask m in all four lanes of a long.
+    static long lane(int m)
+    {
+        return (m & 0xffffL) * 0x0001000100010001L;
+    }
+    static final long ROW0 = lane(0x1111);
+    static final long SR1_A = lane(0x0222), SR1_B = lane(0x2000);
+    static final long SR2_A = lane(0x0044), SR2_B = lane(0x4400);
+    static final long SR3_A = lane(0x0008), SR3_B = lane(0x8880);
+    static final long ISR1_A = lane(0x2220), ISR1_B = lane(0x0002);
+    static final long ISR3_A = lane(0x0888), ISR3_B = lane(0x8000);
+    static final long ROT1_A = lane(0x7777), ROT1_B = lane(0x8888);
+    static final long ROT2_A = lane(0x3333), ROT2_B = lane(0xcccc);
+
+    // The words of one batch and a buffer for a last batch of fewer
+    // than 8 blocks. They do not depend on the key, so every
+    // BitslicedEngine shares one per thread and no objects are
+    // created per call.
+    private static final class Scratch
+    {
+        final long[] q = new long[16];
+        final byte[] partial = new byte[16 * BATCH];
+    }
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    // Round keys, 8 words per round key, in the layout described above.
+    private final long[] sk;
+    private final int rounds;
+
+    BitslicedEngine(AesKey key)
+    {
+        rounds = key.rounds();
+        sk = roundKeys(key);
+    }
+
+    // The round keys of key, 8 words per round key, with every word
+    // holding its bit of the round key in all four lanes.
+    static long[] roundKeys(AesKey key)
+    {
+        int[] w = key.words();
+        int rounds = key.rounds();
+        long[] sk = new long[8 * (rounds + 1)];
+        for (int r = 0; r <= rounds; r++)
+        {
+            for (int i = 0; i < 16; i++)
+            {
+                int b = (w[4 * r + i / 4] >>> (24 - 8 * (i % 4))) & 0xff;
+                for (int bit = 0; bit < 8; bit++)
+                    sk[8 * r + bit] |= ((b >>> bit) & 1L) * lane(1 << i);
+            }
+        }
+        return sk;
+    }
+
+    public void destroy()
+    {
+        java.util.Arrays.fill(sk, 0);
+    }
+
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        encryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        decryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        run(in, inOff, out, outOff, blocks, true);
+    }
+
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        run(in, inOff, out, outOff, blocks, false);
+    }
+
+    private void run(byte[] in, int inOff, byte[] out, int outOff, int blocks, boolean encrypt)
+    {
+        Scratch scratch = SCRATCH.get();
+        long[] q = scratch.q;
+        byte[] partial = scratch.partial;
+        for (int done = 0; done < blocks; done += BATCH)
+        {
+            int n = Math.min(BATCH, blocks - done);
+            byte[] src = in, dst = out;
+            int srcOff = inOff + 16 * done, dstOff = outOff + 16 * done;
+            if (n < BATCH)
+            {
+                // The rest of the last batch is filler; its output is
+                // thrown away.
+                System.arraycopy(in, srcOff, partial, 0, 16 * n);
+                src = dst = partial;
+                srcOff = dstOff = 0;
+            }
+            load(src, srcOff, q, 0);
+            load(src, srcOff + 64, q, 8);
+            if (encrypt)
+                encrypt(q);
+            else
+                decrypt(q);
+            store(q, 0, dst, dstOff);
+            store(q, 8, dst, dstOff + 64);
+            if (n < BATCH)
+                System.arraycopy(partial, 0, out, outOff + 16 * done, 16 * n);
+        }
+    }
+
+    private void encrypt(long[] q)
+    {
+        addRoundKey(q, 0);
+        for (int r = 1; r < rounds; r++)
+        {
+            subBytes(q, 0);
+            subBytes(q, 8);
+            shiftRows(q);
+            mixColumns(q, 0);
+            mixColumns(q, 8);
+            addRoundKey(q, r);
+        }
+        subBytes(q, 0);
+        subBytes(q, 8);
+        shiftRows(q);
+        addRoundKey(q, rounds);
+    }
+
+    // Same order of steps as AES.invCipher.
+    private void decrypt(long[] q)
+    {
+        addRoundKey(q, rounds);
+        for (int r = rounds - 1; r > 0; r--)
+        {
+            invShiftRows(q);
+            invSubBytes(q, 0);
+            invSubBytes(q, 8);
+            addRoundKey(q, r);
+            invMixColumns(q, 0);
+            invMixColumns(q, 8);
+        }
+        invShiftRows(q);
+        invSubBytes(q, 0);
+        invSubBytes(q, 8);
+        addRoundKey(q, 0);
+    }
+
+    private void addRoundKey(long[] q, int r)
+    {
+        for (int b = 0; b < 8; b++)
+        {
+            q[b] ^= sk[8 * r + b];
+            q[b + 8] ^= sk[8 * r + b];
+        }
+    }
+
+    /*
+        Transposes an 8 x 8 bit matrix stored in a long, where byte k
+        is row k and bit j of that byte is column j. Afterwards byte j
+        holds bit j of each of the 8 original bytes. Doing it twice
+        gives back the original long.
+     */
+    private static long transpose(long x)
+    {
+        long t = (x ^ (x >>> 7)) & 0x00aa00aa00aa00aaL;
+        x ^= t ^ (t << 7);
+        t = (x ^ (x >>> 14)) & 0x0000cccc0000ccccL;
+        x ^= t ^ (t << 14);
+        t = (x ^ (x >>> 28)) & 0x00000000f0f0f0f0L;
+        x ^= t ^ (t << 28);
+        return x;
+    }
+    // Moves 64 bytes (4 blocks) into the 8 bit words q[off] to q[off+7].
+    static void load(byte[] in, int inOff, long[] q, int off)
+    {
+        for (int b = 0; b < 8; b++)
+            q[off + b] = 0;
+        for (int g = 0; g < 8; g++)
+        {
+            long x = 0;
+            for (int k = 7; k >= 0; k--)
+                x = x << 8 | (in[inOff + 8 * g + k] & 0xffL);
+            x = transpose(x);
+            for (int b = 0; b < 8; b++)
+                q[off + b] |= ((x >>> (8 * b)) & 0xffL) << (8 * g);
+        }
+    }
+    // The inverse of load.
+    static void store(long[] q, int off, byte[] out, int outOff)
+    {
+        for (int g = 0; g < 8; g++)
+        {
+            long x = 0;
+            for (int b = 0; b < 8; b++)
+                x |= ((q[off + b] >>> (8 * g)) & 0xffL) << (8 * b);
+            x = transpose(x);
+            for (int k = 0; k < 8; k++)
+                out[outOff + 8 * g + k] = (byte) (x >>> (8 * k));
+        }
+    }
+
+    /*
+        shiftRows: the byte at (row r, column c) takes the value from
+        (row r, column c + r). Bit 4c + r of a lane moves to it from
+        bit 4(c + r) + r, wrapping around inside the 16 bit lane.
+     */
+    private static void shiftRows(long[] q)
+    {
+        for (int i = 0; i < 16; i++)
+        {
+            long x = q[i];
+            q[i] = (x & ROW0)
+                    | ((x >>> 4) & SR1_A) | ((x << 12) & SR1_B)
+                    | ((x >>> 8) & SR2_A) | ((x << 8) & SR2_B)
+                    | ((x >>> 12) & SR3_A) | ((x << 4) & SR3_B);
+        }
+    }
+    // invShiftRows: (row r, column c) takes the value from (row r, column c - r).
+    private static void invShiftRows(long[] q)
+    {
+        for (int i = 0; i < 16; i++)
+        {
+            long x = q[i];
+            q[i] = (x & ROW0)
+                    | ((x << 4) & ISR1_A) | ((x >>> 12) & ISR1_B)
+                    | ((x >>> 8) & SR2_A) | ((x << 8) & SR2_B)
+                    | ((x >>> 4) & ISR3_A) | ((x << 12) & ISR3_B);
+        }
+    }
+    // Row r of each column takes the value of row r + 1 (or r + 2).
+    private static long rotateRows1(long x)
+    {
+        return ((x >>> 1) & ROT1_A) | ((x << 3) & ROT1_B);
+    }
+    private static long rotateRows2(long x)
+    {
+        return ((x >>> 2) & ROT2_A) | ((x << 2) & ROT2_B);
+    }
+    /*
+        For each row r of a column:
+            s_r = 2a_r xor 3a_(r+1) xor a_(r+2) xor a_(r+3)
+                = 2(a_r xor a_(r+1)) xor a_(r+1) xor a_(r+2) xor a_(r+3)
+        With b = a rotated by one row and t = a xor b, this is
+            xTimes(t) xor b xor (t rotated by two rows).
+        xTimes on the bit words shifts every bit up one place and xors
+        the old bit 7 into bits 0, 1, 3 and 4 (m(x) = 0x11b).
+     */
+    private static void mixColumns(long[] q, int off)
+    {
+        long b0 = rotateRows1(q[off]), b1 = rotateRows1(q[off + 1]);
+        long b2 = rotateRows1(q[off + 2]), b3 = rotateRows1(q[off + 3]);
+        long b4 = rotateRows1(q[off + 4]), b5 = rotateRows1(q[off + 5]);
+        long b6 = rotateRows1(q[off + 6]), b7 = rotateRows1(q[off + 7]);
+        long t0 = q[off] ^ b0, t1 = q[off + 1] ^ b1, t2 = q[off + 2] ^ b2, t3 = q[off + 3] ^ b3;
+        long t4 = q[off + 4] ^ b4, t5 = q[off + 5] ^ b5, t6 = q[off + 6] ^ b6, t7 = q[off + 7] ^ b7;
+        q[off] = t7 ^ b0 ^ rotateRows2(t0);
+        q[off + 1] = t0 ^ t7 ^ b1 ^ rotateRows2(t1);
+        q[off + 2] = t1 ^ b2 ^ rotateRows2(t2);
+        q[off + 3] = t2 ^ t7 ^ b3 ^ rotateRows2(t3);
+        q[off + 4] = t3 ^ t7 ^ b4 ^ rotateRows2(t4);
+        q[off + 5] = t4 ^ b5 ^ rotateRows2(t5);
+        q[off + 6] = t5 ^ b6 ^ rotateRows2(t6);
+        q[off + 7] = t6 ^ b7 ^ rotateRows2(t7);
+    }
+    /*
+        invMixColumns is mixColumns after a simple first step:
+            u = 4(a_r xor a_(r+2)),  a_r = a_r xor u
+        (see "The Design of Rijndael", section 4.1.3). Multiplying by 4
+        is xTimes done twice, written out bit by bit below.
+     */
+    private static void invMixColumns(long[] q, int off)
+    {
+        long u0 = q[off] ^ rotateRows2(q[off]), u1 = q[off + 1] ^ rotateRows2(q[off + 1]);
+        long u2 = q[off + 2] ^ rotateRows2(q[off + 2]), u3 = q[off + 3] ^ rotateRows2(q[off + 3]);
+        long u4 = q[off + 4] ^ rotateRows2(q[off + 4]), u5 = q[off + 5] ^ rotateRows2(q[off + 5]);
+        long u6 = q[off + 6] ^ rotateRows2(q[off + 6]), u7 = q[off + 7] ^ rotateRows2(q[off + 7]);
+        q[off] ^= u6;
+        q[off + 1] ^= u7 ^ u6;
+        q[off + 2] ^= u0 ^ u7;
+        q[off + 3] ^= u1 ^ u6;
+        q[off + 4] ^= u2 ^ u7 ^ u6;
+        q[off + 5] ^= u3 ^ u7;
+        q[off + 6] ^= u4;
+        q[off + 7] ^= u5;
+        mixColumns(q, off);
+    }
+
+    /*
+        The sBox as a boolean circuit on the 8 bit words q[off] to
+        q[off+7] (q[off] is the lowest bit). This is the 113 gate
+        circuit of Boyar and Peralta, "A new combinational logic
+        minimization technique with applications to cryptology".
+     */
+    private static void subBytes(long[] q, int off)
+    {
+        long x0 = q[off + 7], x1 = q[off + 6], x2 = q[off + 5], x3 = q[off + 4];
+        long x4 = q[off + 3], x5 = q[off + 2], x6 = q[off + 1], x7 = q[off];
+
+        // Top linear transformation.
+        long y14 = x3 ^ x5;
+        long y13 = x0 ^ x6;
+        long y9 = x0 ^ x3;
+        long y8 = x0 ^ x5;
+        long t0 = x1 ^ x2;
+        long y1 = t0 ^ x7;
+        long y4 = y1 ^ x3;
+        long y12 = y13 ^ y14;
+        long y2 = y1 ^ x0;
+        long y5 = y1 ^ x6;
+        long y3 = y5 ^ y8;
+        long t1 = x4 ^ y12;
+        long y15 = t1 ^ x5;
+        long y20 = t1 ^ x1;
+        long y6 = y15 ^ x7;
+        long y10 = y15 ^ t0;
+        long y11 = y20 ^ y9;
+        long y7 = x7 ^ y11;
+        long y17 = y10 ^ y11;
+        long y19 = y10 ^ y8;
+        long y16 = t0 ^ y11;
+        long y21 = y13 ^ y16;
+        long y18 = x0 ^ y16;
+
+        // Non-linear section (inversion in GF(2^8)).
+        long t2 = y12 & y15;
+        long t3 = y3 & y6;
+        long t4 = t3 ^ t2;
+        long t5 = y4 & x7;
+        long t6 = t5 ^ t2;
+        long t7 = y13 & y16;
+        long t8 = y5 & y1;
+        long t9 = t8 ^ t7;
+        long t10 = y2 & y7;
+        long t11 = t10 ^ t7;
+        long t12 = y9 & y11;
+        long t13 = y14 & y17;
+        long t14 = t13 ^ t12;
+        long t15 = y8 & y10;
+        long t16 = t15 ^ t12;
+        long t17 = t4 ^ t14;
+        long t18 = t6 ^ t16;
+        long t19 = t9 ^ t14;
+        long t20 = t11 ^ t16;
+        long t21 = t17 ^ y20;
+        long t22 = t18 ^ y19;
+        long t23 = t19 ^ y21;
+        long t24 = t20 ^ y18;
+
+        long t25 = t21 ^ t22;
+        long t26 = t21 & t23;
+        long t27 = t24 ^ t26;
+        long t28 = t25 & t27;
+        long t29 = t28 ^ t22;
+        long t30 = t23 ^ t24;
+        long t31 = t22 ^ t26;
+        long t32 = t31 & t30;
+        long t33 = t32 ^ t24;
+        long t34 = t23 ^ t33;
+        long t35 = t27 ^ t33;
+        long t36 = t24 & t35;
+        long t37 = t36 ^ t34;
+        long t38 = t27 ^ t36;
+        long t39 = t29 & t38;
+        long t40 = t25 ^ t39;
+
+        long t41 = t40 ^ t37;
+        long t42 = t29 ^ t33;
+        long t43 = t29 ^ t40;
+        long t44 = t33 ^ t37;
+        long t45 = t42 ^ t41;
+        long z0 = t44 & y15;
+        long z1 = t37 & y6;
+        long z2 = t33 & x7;
+        long z3 = t43 & y16;
+        long z4 = t40 & y1;
+        long z5 = t29 & y7;
+        long z6 = t42 & y11;
+        long z7 = t45 & y17;
+        long z8 = t41 & y10;
+        long z9 = t44 & y12;
+        long z10 = t37 & y3;
+        long z11 = t33 & y4;
+        long z12 = t43 & y13;
+        long z13 = t40 & y5;
+        long z14 = t29 & y2;
+        long z15 = t42 & y9;
+        long z16 = t45 & y14;
+        long z17 = t41 & y8;
+
+        // Bottom linear transformation (includes the affine step).
+        long t46 = z15 ^ z16;
+        long t47 = z10 ^ z11;
+        long t48 = z5 ^ z13;
+        long t49 = z9 ^ z10;
+        long t50 = z2 ^ z12;
+        long t51 = z2 ^ z5;
+        long t52 = z7 ^ z8;
+        long t53 = z0 ^ z3;
+        long t54 = z6 ^ z7;
+        long t55 = z16 ^ z17;
+        long t56 = z12 ^ t48;
+        long t57 = t50 ^ t53;
+        long t58 = z4 ^ t46;
+        long t59 = z3 ^ t54;
+        long t60 = t46 ^ t57;
+        long t61 = z14 ^ t57;
+        long t62 = t52 ^ t58;
+        long t63 = t49 ^ t58;
+        long t64 = z4 ^ t59;
+        long t65 = t61 ^ t62;
+        long t66 = z1 ^ t63;
+        long s0 = t59 ^ t63;
+        long s6 = t56 ^ ~t62;
+        long s7 = t48 ^ ~t60;
+        long t67 = t64 ^ t65;
+        long s3 = t53 ^ t66;
+        long s4 = t51 ^ t66;
+        long s5 = t47 ^ t65;
+        long s1 = t64 ^ ~s3;
+        long s2 = t55 ^ ~t67;
+
+        q[off + 7] = s0;
+        q[off + 6] = s1;
+        q[off + 5] = s2;
+        q[off + 4] = s3;
+        q[off + 3] = s4;
+        q[off + 2] = s5;
+        q[off + 1] = s6;
+        q[off] = s7;
+    }
+    /*
+        The sBox is S(x) = A(inverse(x)) xor 0x63, where A is a linear
+        map. Writing B for the inverse of A, the invSBox is
+            invS(x) = B(S(B(x xor 0x63)) xor 0x63)
+        so it can reuse the sBox circuit. The xor with 0x63 (bits 0, 1,
+        5 and 6) is done with the nots below.
+     */
+    private static void invSubBytes(long[] q, int off)
+    {
+        inverseAffine(q, off);
+        subBytes(q, off);
+        inverseAffine(q, off);
+    }
+    // Computes B(x xor 0x63): bit i is x_(i+2) xor x_(i+5) xor x_(i+7).
+    private static void inverseAffine(long[] q, int off)
+    {
+        long q0 = ~q[off], q1 = ~q[off + 1], q2 = q[off + 2], q3 = q[off + 3];
+        long q4 = q[off + 4], q5 = ~q[off + 5], q6 = ~q[off + 6], q7 = q[off + 7];
+        q[off + 7] = q1 ^ q4 ^ q6;
+        q[off + 6] = q0 ^ q3 ^ q5;
+        q[off + 5] = q7 ^ q2 ^ q4;
+        q[off + 4] = q6 ^ q1 ^ q3;
+        q[off + 3] = q5 ^ q0 ^ q2;
+        q[off + 2] = q4 ^ q7 ^ q1;
+        q[off + 1] = q3 ^ q6 ^ q0;
+        q[off] = q2 ^ q5 ^ q7;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+    A BlockCipherEngine encrypts and decrypts 16 byte blocks for one
+    AesKey. Each implementation runs the same AES rounds in a different
+    way (see the Engine enum for the list). Engines never change after
+    they are created, so one engine can be used by many threads.
+ */
+interface BlockCipherEngine
+{
+    // Encrypts the 16 bytes at in[inOff] into out[outOff].
+    // in and out may be the same array.
+    void encryptBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+    // Decrypts the 16 bytes at in[inOff] into out[outOff].
+    void decryptBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+    // Encrypts the given number of consecutive blocks. Engines that
+    // work on several blocks at once override this.
+    default void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        for (int i = 0; i < blocks; i++)
+            encryptBlock(in, inOff + 16 * i, out, outOff + 16 * i);
+    }
+
+    default void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        for (int i = 0; i < blocks; i++)
+            decryptBlock(in, inOff + 16 * i, out, outOff + 16 * i);
+    }
+
+    // Overwrites any key material the engine made for itself. Called
+    // by AesKey.destroy.
+    default void destroy()
+    {
+    }
+}
@@ -0,0 +1,57 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/*
+    Lets the byte[] methods of the modes work on ByteBuffers.
+    When both buffers are backed by arrays the arrays are used directly.
+    Otherwise (direct or read only buffers) the data goes through one
+    small heap chunk at a time, so a direct buffer of any size never
+    has to be copied onto the heap as a whole.
+    The same buffer may be passed as in and out to work in place.
+ */
+final class Buffers
+{
+    // Chunk size for direct buffers, a whole number of blocks.
+    static final int CHUNK = 8192;
+
+    interface Transform
+    {
+        // done is the number of bytes already handled before this call.
+        void apply(byte[] in, int inOff, byte[] out, int outOff, int len, long done);
+    }
+
+    private Buffers()
+    {
+    }
+
+    // Transforms in.remaining() bytes from in into out and moves the
+    // position of both buffers past them. Returns the number of bytes.
+    static int transform(ByteBuffer in, ByteBuffer out, Transform t)
+    {
+        int len = in.remaining();
+        if (out.remaining() < len)
+            throw new BufferOverflowException();
+        if (in.hasArray() && out.hasArray() && !out.isReadOnly())
+        {
+            t.apply(in.array(), in.arrayOffset() + in.position(),
+                    out.array(), out.arrayOffset() + out.position(), len, 0);
+            out.position(out.position() + len);
+        }
+        else
+        {
+            ByteBuffer src = in.duplicate();
+            byte[] chunk = new byte[Math.min(len, CHUNK)];
+            for (int done = 0; done < len; )
+            {
+                int n = Math.min(chunk.length, len - done);
+                src.get(chunk, 0, n);
+                t.apply(chunk, 0, chunk, 0, n, done);
+                out.put(chunk, 0, n);
+                done += n;
+            }
+        }
+        if (in != out)
+            in.position(in.position() + len);
+        return len;
+    }
+}
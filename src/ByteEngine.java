@@ -0,0 +1,173 @@
+/*
+    The ByteEngine runs the same rounds as AES.cipher and AES.invCipher,
+    but works on bytes and ints instead of binary strings.
+    The state is kept as four int words, one word per column of the
+    4 x 4 state matrix (row 0 in the high byte):
+        c0 c1 c2 c3
+        |  |  |  |
+        0  4  8  c
+        1  5  9  d
+        2  6  a  e
+        3  7  b  f
+    so the input bytes can be read straight into the columns without
+    switching columns and rows.
+    Every GF(2^8) product the rounds need is read from a table that is
+    filled in once, and the sBox is a flat 256 entry array indexed by
+    the byte itself. No objects are created per block.
+ */
+final class ByteEngine implements BlockCipherEngine
+{
+    // The sBox and invSBox from AES, flattened so that the entry
+    // at row r and column c is found at index 16*r + c, which is
+    // just the byte value.
+    static final int[] SBOX = flatten(AES.sBox);
+    static final int[] INV_SBOX = flatten(AES.invSBox);
+    // Multiplication tables: MULn[a] is a * n in GF(2^8).
+    static final int[] MUL2 = multiplyTable(0x02);
+    static final int[] MUL3 = multiplyTable(0x03);
+    static final int[] MUL9 = multiplyTable(0x09);
+    static final int[] MUL11 = multiplyTable(0x0b);
+    static final int[] MUL13 = multiplyTable(0x0d);
+    static final int[] MUL14 = multiplyTable(0x0e);
+
+    private final int[] w;
+    private final int rounds;
+
+    ByteEngine(AesKey key)
+    {
+        this.w = key.words();
+        this.rounds = key.rounds();
+    }
+
+    private static int[] flatten(int[][] table)
+    {
+        int[] flat = new int[256];
+        for (int i = 0; i < 16; i++)
+            System.arraycopy(table[i], 0, flat, 16 * i, 16);
+        return flat;
+    }
+    // Same as AES.xTimes, but on the int value: shift left and
+    // reduce by m(x) = x^8 + x^4 + x^3 + x + 1 when degree 8 appears.
+    static int xTimes(int a)
+    {
+        a <<= 1;
+        if ((a & 0x100) != 0)
+            a ^= 0x11b;
+        return a;
+    }
+    // Same as AES.multiplyPoly: add up q * x^i for every bit i set in p.
+    static int multiply(int p, int q)
+    {
+        int pq = 0;
+        for (; p != 0; p >>>= 1)
+        {
+            if ((p & 1) != 0)
+                pq ^= q;
+            q = xTimes(q);
+        }
+        return pq;
+    }
+    private static int[] multiplyTable(int n)
+    {
+        int[] table = new int[256];
+        for (int a = 0; a < 256; a++)
+            table[a] = multiply(a, n);
+        return table;
+    }
+
+    static int getInt(byte[] b, int off)
+    {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+                | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+    static void putInt(int v, byte[] b, int off)
+    {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+    /*
+        subBytes and shiftRows for one output column. Row i of the
+        output column comes from row i of the column i places to
+        the right, so the four arguments are the input columns
+        in that order.
+     */
+    private static int subShift(int a, int b, int c, int d, int[] box)
+    {
+        return box[a >>> 24] << 24 | box[(b >>> 16) & 0xff] << 16
+                | box[(c >>> 8) & 0xff] << 8 | box[d & 0xff];
+    }
+    // mixColumns applied to a single column word.
+    private static int mixColumn(int col)
+    {
+        int a0 = col >>> 24, a1 = (col >>> 16) & 0xff, a2 = (col >>> 8) & 0xff, a3 = col & 0xff;
+        return (MUL2[a0] ^ MUL3[a1] ^ a2 ^ a3) << 24
+                | (a0 ^ MUL2[a1] ^ MUL3[a2] ^ a3) << 16
+                | (a0 ^ a1 ^ MUL2[a2] ^ MUL3[a3]) << 8
+                | (MUL3[a0] ^ a1 ^ a2 ^ MUL2[a3]);
+    }
+    // invMixColumns applied to a single column word.
+    private static int invMixColumn(int col)
+    {
+        int a0 = col >>> 24, a1 = (col >>> 16) & 0xff, a2 = (col >>> 8) & 0xff, a3 = col & 0xff;
+        return (MUL14[a0] ^ MUL11[a1] ^ MUL13[a2] ^ MUL9[a3]) << 24
+                | (MUL9[a0] ^ MUL14[a1] ^ MUL11[a2] ^ MUL13[a3]) << 16
+                | (MUL13[a0] ^ MUL9[a1] ^ MUL14[a2] ^ MUL11[a3]) << 8
+                | (MUL11[a0] ^ MUL13[a1] ^ MUL9[a2] ^ MUL14[a3]);
+    }
+    // Encrypts the 16 bytes at in[inOff] into out[outOff].
+    // in and out may be the same array.
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        int[] w = this.w;
+        int c0 = getInt(in, inOff) ^ w[0];
+        int c1 = getInt(in, inOff + 4) ^ w[1];
+        int c2 = getInt(in, inOff + 8) ^ w[2];
+        int c3 = getInt(in, inOff + 12) ^ w[3];
+        for (int r = 1; r < rounds; r++)
+        {
+            int t0 = subShift(c0, c1, c2, c3, SBOX);
+            int t1 = subShift(c1, c2, c3, c0, SBOX);
+            int t2 = subShift(c2, c3, c0, c1, SBOX);
+            int t3 = subShift(c3, c0, c1, c2, SBOX);
+            c0 = mixColumn(t0) ^ w[4 * r];
+            c1 = mixColumn(t1) ^ w[4 * r + 1];
+            c2 = mixColumn(t2) ^ w[4 * r + 2];
+            c3 = mixColumn(t3) ^ w[4 * r + 3];
+        }
+        int k = 4 * rounds;
+        putInt(subShift(c0, c1, c2, c3, SBOX) ^ w[k], out, outOff);
+        putInt(subShift(c1, c2, c3, c0, SBOX) ^ w[k + 1], out, outOff + 4);
+        putInt(subShift(c2, c3, c0, c1, SBOX) ^ w[k + 2], out, outOff + 8);
+        putInt(subShift(c3, c0, c1, c2, SBOX) ^ w[k + 3], out, outOff + 12);
+    }
+    // Decrypts the 16 bytes at in[inOff] into out[outOff], in the
+    // same order of steps as AES.invCipher.
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        int[] w = this.w;
+        int k = 4 * rounds;
+        int c0 = getInt(in, inOff) ^ w[k];
+        int c1 = getInt(in, inOff + 4) ^ w[k + 1];
+        int c2 = getInt(in, inOff + 8) ^ w[k + 2];
+        int c3 = getInt(in, inOff + 12) ^ w[k + 3];
+        for (int r = rounds - 1; r > 0; r--)
+        {
+            // invShiftRows moves row i right by i, so row i of an
+            // output column comes from the column i places to the left.
+            int t0 = subShift(c0, c3, c2, c1, INV_SBOX) ^ w[4 * r];
+            int t1 = subShift(c1, c0, c3, c2, INV_SBOX) ^ w[4 * r + 1];
+            int t2 = subShift(c2, c1, c0, c3, INV_SBOX) ^ w[4 * r + 2];
+            int t3 = subShift(c3, c2, c1, c0, INV_SBOX) ^ w[4 * r + 3];
+            c0 = invMixColumn(t0);
+            c1 = invMixColumn(t1);
+            c2 = invMixColumn(t2);
+            c3 = invMixColumn(t3);
+        }
+        putInt(subShift(c0, c3, c2, c1, INV_SBOX) ^ w[0], out, outOff);
+        putInt(subShift(c1, c0, c3, c2, INV_SBOX) ^ w[1], out, outOff + 4);
+        putInt(subShift(c2, c1, c0, c3, INV_SBOX) ^ w[2], out, outOff + 8);
+        putInt(subShift(c3, c2, c1, c0, INV_SBOX) ^ w[3], out, outOff + 12);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+    The block engines that can be chosen for AES.encrypt and AES.decrypt.
+        BYTE      - ByteEngine, byte tables for sBox and GF(2^8) products.
+        TTABLE    - TTableEngine, merged 32-bit round tables. Fastest for
+                    bulk work in pure Java.
+        BITSLICED - BitslicedEngine, only boolean operations on longs.
+                    Runs in constant time (no table lookups indexed by
+                    key or data), and works on 8 blocks at a time.
+        STATE     - StateEngine, the steps of AES.cipher on a 4 x 4 state
+                    that is changed in place, with no objects created
+                    per block.
+        JCE       - JceEngine, the JDK's javax.crypto AES, which the JVM
+                    runs with the hardware AES instructions where the
+                    CPU has them.
+        VECTOR    - VectorEngine, the BITSLICED circuit run on the SIMD
+                    lanes of the CPU through the Vector API, 4 blocks
+                    per 64 bit lane (32 blocks at a time with AVX-512).
+                    Constant time like BITSLICED. Only there when
+                    src/vector is compiled and the JVM is started with
+                    --add-modules jdk.incubator.vector; otherwise
+                    choosing it gives the BitslicedEngine.
+        REFERENCE - ReferenceEngine, AES.cipher and AES.invCipher
+                    themselves. Very slow; for checking the others.
+    All engines give exactly the same output.
+    defaultEngine() is the engine used whenever the caller does not
+    choose one. It is picked once, the first time it is needed: the
+    system property aes.engine can name one (for example
+    -Daes.engine=TTABLE). If it is not set (or is "auto"), JCE is taken
+    when the JVM runs javax.crypto AES with the hardware instructions;
+    otherwise every engine but REFERENCE is timed on a few blocks and
+    the fastest one wins. An aes.engine that names no engine is
+    reported once on System.err and treated as "auto".
+ */
+public enum Engine
+{
+    BYTE
+    {
+        BlockCipherEngine keySetup(AesKey key)
+        {
+            return new ByteEngine(key);
+        }
+    },
+    TTABLE
+    {
+        BlockCipherEngine keySetup(AesKey key)
+        {
+            return new TTableEngine(key);
+        }
+    },
+    BITSLICED
+    {
+        BlockCipherEngine keySetup(AesKey key)
+        {
+            return new BitslicedEngine(key);
+        }
+    },
+    STATE
+    {
+        BlockCipherEngine keySetup(AesKey key)
+        {
+            return new StateEngine(key);
+        }
+    },
+    JCE
+    {
+        BlockCipherEngine keySetup(AesKey key)
+        {
+            return new JceEngine(key);
+        }
+    },
+    VECTOR
+    {
+        BlockCipherEngine keySetup(AesKey key)
+        {
+            if (Vector.CONSTRUCTOR == null)
+                return new BitslicedEngine(key);
+            try
+            {
+                return (BlockCipherEngine) Vector.CONSTRUCTOR.newInstance(key);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                throw new IllegalStateException("cannot create VectorEngine", e);
+            }
+        }
+    },
+    REFERENCE
+    {
+        BlockCipherEngine keySetup(AesKey key)
+        {
+            return new ReferenceEngine(key);
+        }
+    };
+
+    // The engine used when the caller does not choose one.
+    static Engine defaultEngine()
+    {
+        return Default.ENGINE;
+    }
+
+    // Holds the choice, so it is only made when first asked for.
+    private static final class Default
+    {
+        static final Engine ENGINE = fromProperty();
+
+        // A bad name must not throw here: a failed class initialisation
+        // would make every later call fail with NoClassDefFoundError.
+        private static Engine fromProperty()
+        {
+            try
+            {
+                return select(System.getProperty("aes.engine", "auto"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println("warning: " + e.getMessage() + "; choosing the engine automatically");
+                return select("auto");
+            }
+        }
+    }
+
+    /*
+        The VectorEngine constructor, or null if the engine cannot be
+        used. VectorEngine is only compiled with the incubator module,
+        so it is looked up by name: that way this class still compiles
+        and runs without it.
+     */
+    private static final class Vector
+    {
+        static final java.lang.reflect.Constructor<?> CONSTRUCTOR = find();
+
+        private static java.lang.reflect.Constructor<?> find()
+        {
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+                return null;
+            try
+            {
+                return Class.forName("VectorEngine").getDeclaredConstructor(AesKey.class);
+            }
+            catch (ReflectiveOperationException | LinkageError e)
+            {
+                return null;
+            }
+        }
+    }
+
+    // True if VECTOR really runs the VectorEngine.
+    static boolean vectorAvailable()
+    {
+        return Vector.CONSTRUCTOR != null;
+    }
+
+    static Engine select(String name)
+    {
+        if (!name.equalsIgnoreCase("auto"))
+        {
+            try
+            {
+                return valueOf(name.toUpperCase(java.util.Locale.ROOT));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException("unknown aes.engine: " + name);
+            }
+        }
+        return hardwareAes() ? JCE : fastest();
+    }
+
+    // HotSpot turns UseAES on when the CPU has AES instructions and the
+    // JVM uses them for javax.crypto. Other JVMs do not have the flag.
+    private static boolean hardwareAes()
+    {
+        try
+        {
+            com.sun.management.HotSpotDiagnosticMXBean hotSpot = java.lang.management.ManagementFactory
+                    .getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            return hotSpot != null && Boolean.parseBoolean(hotSpot.getVMOption("UseAES").getValue());
+        }
+        catch (RuntimeException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    /*
+        Times each engine on a random key, 16 blocks per call, and
+        returns the one that did the most calls. Each engine is run
+        twice, in turn, and only the second run counts, so every engine
+        has been through the JIT compiler the same number of times. The
+        whole choice takes around 0.15 seconds.
+     */
+    private static Engine fastest()
+    {
+        byte[] k = new byte[16];
+        new java.util.Random().nextBytes(k);
+        AesKey key = new AesKey(Hex.encode(k));
+        byte[] b = new byte[16 * 16];
+        Engine best = BYTE;
+        long bestCalls = -1;
+        for (int run = 0; run < 2; run++)
+        {
+            for (Engine engine : values())
+            {
+                if (engine == REFERENCE || (engine == VECTOR && !vectorAvailable()))
+                    continue;
+                BlockCipherEngine e = key.engine(engine);
+                long calls = 0;
+                long end = System.nanoTime() + 10_000_000L;
+                while (System.nanoTime() < end)
+                {
+                    e.encryptBlocks(b, 0, b, 0, 16);
+                    calls++;
+                }
+                if (run == 1 && calls > bestCalls)
+                {
+                    best = engine;
+                    bestCalls = calls;
+                }
+            }
+        }
+        key.destroy();
+        return best;
+    }
+
+    // Builds the engine for one key. Callers normally go through
+    // AesKey.engine, which keeps the result.
+    abstract BlockCipherEngine keySetup(AesKey key);
+}
@@ -0,0 +1,58 @@
+/*
+    Hex is the conversion between bytes and hex strings (two lower case
+    digits per byte). The String methods of AES use it at their edges;
+    the byte[] and ByteBuffer APIs never need it, so it stays out of the
+    way of the actual encryption.
+ */
+public final class Hex
+{
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hex()
+    {
+    }
+
+    public static String encode(byte[] b)
+    {
+        return encode(b, 0, b.length);
+    }
+
+    public static String encode(byte[] b, int off, int len)
+    {
+        char[] c = new char[2 * len];
+        encode(b, off, len, c, 0);
+        return new String(c);
+    }
+
+    // Writes 2*len hex digits for b[off, off+len) into c[cOff].
+    static void encode(byte[] b, int off, int len, char[] c, int cOff)
+    {
+        for (int i = 0; i < len; i++)
+        {
+            c[cOff + 2 * i] = DIGITS[(b[off + i] >> 4) & 0xf];
+            c[cOff + 2 * i + 1] = DIGITS[b[off + i] & 0xf];
+        }
+    }
+
+    public static byte[] decode(CharSequence s)
+    {
+        if ((s.length() & 1) != 0)
+            throw new IllegalArgumentException("odd number of hex digits");
+        byte[] b = new byte[s.length() / 2];
+        decode(s, 0, b, 0, b.length);
+        return b;
+    }
+
+    // Reads len bytes (2*len digits starting at s[sOff]) into b[off].
+    static void decode(CharSequence s, int sOff, byte[] b, int off, int len)
+    {
+        for (int i = 0; i < len; i++)
+        {
+            int hi = Character.digit(s.charAt(sOff + 2 * i), 16);
+            int lo = Character.digit(s.charAt(sOff + 2 * i + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("not a hex digit at " + (sOff + 2 * i));
+            b[off + i] = (byte) (hi << 4 | lo);
+        }
+    }
+}
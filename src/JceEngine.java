@@ -0,0 +1,192 @@
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+    The JceEngine hands the blocks to the JDK's own AES
+    (javax.crypto.Cipher, "AES/ECB/NoPadding"). On x86 and ARM hosts the
+    JVM replaces that code with the hardware AES instructions, which is
+    many times faster than any of the pure Java engines.
+    Only the block operation is taken from the JDK. The modes (CTR,
+    CBC, GCM, the padding and the String framing) are still this
+    project's own code, so the output is exactly the same as with any
+    other engine.
+    A Cipher cannot be used by two threads at once, so every thread
+    keeps its own pairs (one Cipher to encrypt, one to decrypt), for the
+    PAIRS engines it used most recently. A thread that uses up to PAIRS
+    keys in turn finds each one's pair ready; a further key takes over
+    the pair of the one used least recently and initialises it again
+    with its own key. So the number of live Ciphers is bounded by
+    threads times PAIRS, however many keys are made. Many blocks go to
+    the Cipher in each update call, which is the path the JVM compiles
+    to the hardware instructions.
+    destroy() clears this engine's copy of the key and drops its pair
+    on the calling thread, after setting it to an all zero key. The JDK
+    keeps its own expanded key inside each Cipher, so a pair on another
+    thread holds the key until that thread passes it to another key (or
+    ends).
+ */
+final class JceEngine implements BlockCipherEngine
+{
+    // When in and out are the same array the Cipher copies the whole
+    // input to a new array first. So calls that work in place copy the
+    // input into the thread's scratch buffer themselves, this many
+    // bytes at a time, and no arrays are created.
+    private static final int CHUNK = 4096;
+    // Cipher pairs kept per thread.
+    static final int PAIRS = 16;
+    private static final AtomicLong IDS = new AtomicLong();
+
+    // One Cipher pair and the id of the engine whose key it holds.
+    private static final class State
+    {
+        final Cipher encrypt, decrypt;
+        long owner;
+
+        State()
+        {
+            try
+            {
+                encrypt = Cipher.getInstance("AES/ECB/NoPadding");
+                decrypt = Cipher.getInstance("AES/ECB/NoPadding");
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("javax.crypto AES is not available", e);
+            }
+        }
+
+        void init(long owner, byte[] keyBytes)
+        {
+            try
+            {
+                SecretKeySpec spec = new SecretKeySpec(keyBytes, "AES");
+                encrypt.init(Cipher.ENCRYPT_MODE, spec);
+                decrypt.init(Cipher.DECRYPT_MODE, spec);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            this.owner = owner;
+        }
+    }
+
+    // The pairs and scratch buffer of one thread. The pairs are kept
+    // most recently used first; with so few of them a scan is quicker
+    // than a map and does not box the ids.
+    private static final class Pairs
+    {
+        final State[] states = new State[PAIRS];
+        final byte[] scratch = new byte[CHUNK];
+        int count;
+
+        State get(long id, byte[] keyBytes)
+        {
+            int i = 0;
+            while (i < count && states[i].owner != id)
+                i++;
+            if (i == count)
+            {
+                // A new pair, or the least recently used one (the last)
+                // initialised again with this key.
+                if (count < PAIRS)
+                    states[count++] = new State();
+                i = count - 1;
+                states[i].init(id, keyBytes);
+            }
+            State st = states[i];
+            if (i > 0)
+            {
+                System.arraycopy(states, 0, states, 1, i);
+                states[0] = st;
+            }
+            return st;
+        }
+
+        void remove(long id, byte[] zeros)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                if (states[i].owner == id)
+                {
+                    states[i].init(0, zeros);
+                    System.arraycopy(states, i + 1, states, i, count - i - 1);
+                    states[--count] = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final ThreadLocal<Pairs> PAIRS_OF_THREAD = ThreadLocal.withInitial(Pairs::new);
+
+    private final long id = IDS.incrementAndGet();
+    private final byte[] keyBytes;
+
+    JceEngine(AesKey key)
+    {
+        // The first Nk words of the key schedule are the key itself,
+        // and there are Nk + 6 rounds.
+        int[] w = key.words();
+        keyBytes = new byte[4 * (key.rounds() - 6)];
+        for (int i = 0; i < keyBytes.length; i += 4)
+            ByteEngine.putInt(w[i / 4], keyBytes, i);
+    }
+
+    public void destroy()
+    {
+        Arrays.fill(keyBytes, (byte) 0);
+        PAIRS_OF_THREAD.get().remove(id, keyBytes);
+    }
+
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        encryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        decryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        Pairs p = PAIRS_OF_THREAD.get();
+        update(p.get(id, keyBytes).encrypt, p.scratch, in, inOff, out, outOff, 16 * blocks);
+    }
+
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        Pairs p = PAIRS_OF_THREAD.get();
+        update(p.get(id, keyBytes).decrypt, p.scratch, in, inOff, out, outOff, 16 * blocks);
+    }
+
+    // Whole blocks with no padding leave nothing buffered in the
+    // Cipher, so it is ready for the next call straight away.
+    private static void update(Cipher cipher, byte[] scratch, byte[] in, int inOff, byte[] out, int outOff,
+                               int len)
+    {
+        try
+        {
+            if (in != out || inOff != outOff)
+            {
+                if (len > 0)
+                    cipher.update(in, inOff, len, out, outOff);
+                return;
+            }
+            for (int done = 0; done < len; done += CHUNK)
+            {
+                int n = Math.min(CHUNK, len - done);
+                System.arraycopy(in, inOff + done, scratch, 0, n);
+                cipher.update(scratch, 0, n, out, outOff + done);
+            }
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
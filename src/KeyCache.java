@@ -0,0 +1,190 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+    KeyCache keeps the AesKey (the expanded key schedule) of recently
+    used hex keys, so the String key methods of AES (encrypt, decrypt,
+    cipher and invCipher) only run the key expansion once for a key
+    that is used again and again.
+    The keys are looked up by their bytes, so the same key written in
+    upper or lower case hex is one entry. When there are more than
+    maxSize keys, the one used least recently is evicted. An evicted
+    key has its round keys and key bytes overwritten with zeros as soon
+    as no call is using it any more. With the JCE engine that does not
+    reach the JDK's own copy of the key in the Ciphers of every thread
+    that used it: each such thread keeps it until it passes that Cipher
+    pair on to another key, having used JceEngine.PAIRS other keys
+    since (see JceEngine).
+    The shared cache holds aes.keyCache.size keys (a system property,
+    256 if not set). All methods are thread safe; the lock is only held
+    for the map lookup, never for the key expansion or the encryption.
+ */
+public final class KeyCache
+{
+    static final int DEFAULT_SIZE = Integer.getInteger("aes.keyCache.size", 256);
+    private static final KeyCache SHARED = new KeyCache(DEFAULT_SIZE);
+
+    private static final class Entry
+    {
+        final byte[] bytes;
+        final AesKey key;
+        // Number of calls running with this key right now.
+        int users;
+        boolean evicted;
+
+        Entry(byte[] bytes, AesKey key)
+        {
+            this.bytes = bytes;
+            this.key = key;
+        }
+    }
+
+    // In access order, so the first entry is the least recently used.
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxSize;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+    public KeyCache(int maxSize)
+    {
+        setMaxSize(maxSize);
+    }
+
+    // The cache used by the String key methods of AES.
+    public static KeyCache shared()
+    {
+        return SHARED;
+    }
+
+    // Runs op with the AesKey for hexKey and returns its result. The key
+    // is not destroyed while op runs, even if it is evicted meanwhile.
+    public <T> T withKey(String hexKey, Function<AesKey, T> op)
+    {
+        Entry e = acquire(hexKey);
+        try
+        {
+            return op.apply(e.key);
+        }
+        finally
+        {
+            release(e);
+        }
+    }
+
+    private Entry acquire(String hexKey)
+    {
+        if (hexKey == null || (hexKey.length() != 32 && hexKey.length() != 48 && hexKey.length() != 64))
+            throw new IllegalArgumentException("key must be 32, 48 or 64 hex digits");
+        byte[] bytes = Hex.decode(hexKey);
+        ByteBuffer id = ByteBuffer.wrap(bytes);
+        synchronized (this)
+        {
+            Entry e = entries.get(id);
+            if (e != null)
+            {
+                hits.increment();
+                e.users++;
+                Arrays.fill(bytes, (byte) 0);
+                return e;
+            }
+        }
+        misses.increment();
+        // The key expansion is done without holding the lock.
+        Entry created = new Entry(bytes, new AesKey(hexKey));
+        synchronized (this)
+        {
+            Entry e = entries.get(id);
+            if (e == null)
+            {
+                e = created;
+                entries.put(id, e);
+            }
+            e.users++;
+            if (e != created)
+                destroy(created); // another thread added the same key first
+            trim();
+            return e;
+        }
+    }
+
+    private synchronized void release(Entry e)
+    {
+        e.users--;
+        if (e.evicted && e.users == 0)
+            destroy(e);
+    }
+
+    // Evicts the least recently used keys until at most maxSize are left.
+    private void trim()
+    {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxSize && it.hasNext())
+        {
+            Entry e = it.next();
+            it.remove();
+            e.evicted = true;
+            evictions.increment();
+            if (e.users == 0)
+                destroy(e);
+        }
+    }
+
+    private static void destroy(Entry e)
+    {
+        e.key.destroy();
+        Arrays.fill(e.bytes, (byte) 0);
+    }
+
+    // A size of 0 turns caching off: every key is destroyed after its call.
+    public synchronized void setMaxSize(int maxSize)
+    {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("maxSize must not be negative");
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    public synchronized int maxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    // Evicts (and zeroes) every key.
+    public synchronized void clear()
+    {
+        int max = maxSize;
+        maxSize = 0;
+        trim();
+        maxSize = max;
+    }
+
+    public long hits()
+    {
+        return hits.sum();
+    }
+
+    public long misses()
+    {
+        return misses.sum();
+    }
+
+    public long evictions()
+    {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "KeyCache[size=" + size() + ", maxSize=" + maxSize() + ", hits=" + hits()
+                + ", misses=" + misses() + ", evictions=" + evictions() + "]";
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    A histogram of durations in nanoseconds, laid out like HdrHistogram:
+    the values are grouped by their highest bit (one group per power of
+    two) and each group is cut into 8 equal buckets, so every recorded
+    value is known to within 12.5% and the whole range of a long fits
+    in 512 counters. Values below 8 have a bucket each.
+    record is one atomic increment (plus two adders for the sum and
+    the max), with no locks, so many threads can record at once. The
+    read methods may see a recording that is only half done; that is
+    fine for monitoring.
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BITS = 3, SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    private static int index(long v)
+    {
+        if (v < SUB)
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    // The smallest value that goes in bucket i.
+    private static long lowest(int i)
+    {
+        if (i < SUB)
+            return i;
+        int exp = i / SUB + SUB_BITS - 1;
+        return (long) (SUB + i % SUB) << (exp - SUB_BITS);
+    }
+
+    long count()
+    {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++)
+            n += counts.get(i);
+        return n;
+    }
+
+    long max()
+    {
+        return max.get();
+    }
+
+    double mean()
+    {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The value that p percent of the recorded values are at or below
+    // (the top of the bucket it falls in, but never above the max).
+    long percentile(double p)
+    {
+        long n = count();
+        if (n == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(i + 1 < counts.length() ? lowest(i + 1) - 1 : Long.MAX_VALUE, max());
+        }
+        return max();
+    }
+
+    void reset()
+    {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        sum.reset();
+        max.reset();
+    }
+
+    // count, p50, p99 and max in microseconds.
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d p50=%.1fus p99=%.1fus max=%.1fus", count(),
+                percentile(50) / 1e3, percentile(99) / 1e3, max() / 1e3);
+    }
+}
@@ -0,0 +1,329 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    An OffHeapKeyStore keeps expanded keys outside the Java heap, in one
+    direct ByteBuffer allocated up front. It is meant for services that
+    hold many keys (one per tenant, say) for a long time: the key
+    schedules are not objects the garbage collector has to trace or
+    copy around, and their lifetime is explicit.
+    Every key gets a fixed slot of SLOT_BYTES bytes:
+        words 0 to 59    the encryption round keys, 4 words per round
+                         key (as in AesKey.words), AES-256 size so
+                         every key fits
+        words 60 to 119  the decryption round keys of the TTableEngine
+                         (invMixColumns already applied)
+    The key expansion is done straight into the slot, one word at a
+    time, and each decryption word is made from the encryption word by
+    TTableEngine.decryptionWord, so the only copy of the key on the heap
+    is the decoded key bytes, which are overwritten right away.
+    A Key encrypts with the TTableEngine rounds, reading its round keys
+    from the buffer for every block. It can also be used with the modes
+    through ecb(), ctr(iv), cbc() and gcm().
+    Key.close() makes the key unusable; the slot is overwritten with
+    zeros and handed back for reuse once no call is running with the
+    key any more, so a call that is still running never sees the round
+    keys of the next key put in that slot. close() on the store
+    overwrites every slot and makes every key unusable; it should not
+    happen while keys are in use. The buffer itself is freed by the
+    garbage collector once the store is no longer referenced (there is
+    no way to free a direct buffer earlier), but by then it only holds
+    zeros.
+ */
+public final class OffHeapKeyStore implements AutoCloseable
+{
+    static final int SLOT_WORDS = 2 * 60;
+    static final int SLOT_BYTES = 4 * SLOT_WORDS;
+    private static final int DECRYPT = 4 * 60;
+
+    // Native order, so reading a word is a single load.
+    private final ByteBuffer buffer;
+    private final int capacity;
+    // Slots that are free, used as a stack.
+    private final int[] free;
+    private int freeCount;
+    // The AesMetrics id of the key in each slot that is in use, 0 for
+    // a free slot.
+    private final long[] ids;
+    private volatile boolean closed;
+
+    public OffHeapKeyStore(int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        if (capacity > Integer.MAX_VALUE / SLOT_BYTES)
+            throw new IllegalArgumentException("capacity too large");
+        this.capacity = capacity;
+        buffer = ByteBuffer.allocateDirect(capacity * SLOT_BYTES).order(ByteOrder.nativeOrder());
+        free = new int[capacity];
+        for (int i = 0; i < capacity; i++)
+            free[i] = capacity - 1 - i;
+        freeCount = capacity;
+        ids = new long[capacity];
+    }
+
+    // Expands the hex key (32, 48 or 64 digits) into a free slot.
+    public Key add(String hexKey)
+    {
+        if (hexKey == null || (hexKey.length() != 32 && hexKey.length() != 48 && hexKey.length() != 64))
+            throw new IllegalArgumentException("key must be 32, 48 or 64 hex digits");
+        byte[] key = Hex.decode(hexKey);
+        try
+        {
+            return add(key);
+        }
+        finally
+        {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    // Expands the 16, 24 or 32 key bytes into a free slot. The caller
+    // keeps (and should clear) its array.
+    public Key add(byte[] key)
+    {
+        if (key.length != 16 && key.length != 24 && key.length != 32)
+            throw new IllegalArgumentException("key must be 16, 24 or 32 bytes");
+        // The expansion is short, and done under the lock so that a
+        // close() cannot run in the middle of it.
+        synchronized (this)
+        {
+            if (closed)
+                throw new IllegalStateException("key store has been closed");
+            if (freeCount == 0)
+                throw new IllegalStateException("key store is full (" + capacity + " keys)");
+            int slot = free[--freeCount];
+            long start = AesMetrics.start();
+            int rounds = expand(key, slot * SLOT_BYTES);
+            AesMetrics.keySetup(start);
+            Key added = new Key(slot, slot * SLOT_BYTES, rounds);
+            ids[slot] = added.id;
+            return added;
+        }
+    }
+
+    /*
+        The key expansion of the AES standard (section 5.2) on words:
+        every word is the word nk places back xor the word before, which
+        first goes through rotWord, subWord and the round constant at
+        the start of each group of nk words (and only subWord halfway
+        through a group for 256 bit keys). Then the decryption words
+        are made from the encryption words as in the TTableEngine.
+     */
+    private int expand(byte[] key, int base)
+    {
+        int nk = key.length / 4;
+        int rounds = nk + 6;
+        int words = 4 * (rounds + 1);
+        for (int i = 0; i < nk; i++)
+            buffer.putInt(base + 4 * i, ByteEngine.getInt(key, 4 * i));
+        int rcon = 1;
+        for (int i = nk; i < words; i++)
+        {
+            int t = buffer.getInt(base + 4 * (i - 1));
+            if (i % nk == 0)
+            {
+                t = subWord(Integer.rotateLeft(t, 8)) ^ rcon << 24;
+                rcon = ByteEngine.MUL2[rcon];
+            }
+            else if (nk > 6 && i % nk == 4)
+                t = subWord(t);
+            buffer.putInt(base + 4 * i, buffer.getInt(base + 4 * (i - nk)) ^ t);
+        }
+        for (int i = 0; i < words; i++)
+            buffer.putInt(base + DECRYPT + 4 * i,
+                    TTableEngine.decryptionWord(buffer.getInt(base + 4 * i), i, rounds));
+        return rounds;
+    }
+
+    private static int subWord(int w)
+    {
+        int[] s = ByteEngine.SBOX;
+        return s[w >>> 24] << 24 | s[(w >>> 16) & 0xff] << 16 | s[(w >>> 8) & 0xff] << 8 | s[w & 0xff];
+    }
+
+    private synchronized void release(int slot)
+    {
+        if (closed)
+            return;
+        zero(slot * SLOT_BYTES, SLOT_BYTES);
+        ids[slot] = 0;
+        free[freeCount++] = slot;
+    }
+
+    private void zero(int off, int len)
+    {
+        for (int i = 0; i < len; i += 8)
+            buffer.putLong(off + i, 0L);
+    }
+
+    // Number of keys in the store.
+    public synchronized int size()
+    {
+        return closed ? 0 : capacity - freeCount;
+    }
+
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    // Overwrites every key with zeros. All keys of the store become
+    // unusable, whether they were closed or not.
+    @Override
+    public synchronized void close()
+    {
+        if (closed)
+            return;
+        closed = true;
+        zero(0, buffer.capacity());
+        freeCount = 0;
+        for (long id : ids)
+        {
+            if (id != 0)
+                AesMetrics.keyDestroyed(id);
+        }
+    }
+
+    /*
+        One key of the store. Like a BlockCipherEngine it never changes
+        while it is open, so it can be shared between threads.
+     */
+    public final class Key implements BlockCipherEngine, AutoCloseable
+    {
+        private final int slot, base, rounds;
+        private final long id = AesKey.nextId();
+        private volatile boolean closed;
+        // The open key counts as one user and every running call as
+        // another; the slot is freed when the count drops to 0.
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        private Key(int slot, int base, int rounds)
+        {
+            this.slot = slot;
+            this.base = base;
+            this.rounds = rounds;
+        }
+
+        // The id this key is recorded under in AesMetrics.
+        public long id()
+        {
+            return id;
+        }
+
+        public int rounds()
+        {
+            return rounds;
+        }
+
+        public boolean isClosed()
+        {
+            return closed || OffHeapKeyStore.this.closed;
+        }
+
+        // Makes the key unusable. The round keys are overwritten with
+        // zeros and the slot is freed when the last running call ends.
+        @Override
+        public void close()
+        {
+            synchronized (this)
+            {
+                if (closed)
+                    return;
+                closed = true;
+            }
+            AesMetrics.keyDestroyed(id);
+            release();
+        }
+
+        private void check()
+        {
+            if (isClosed())
+                throw new IllegalStateException("key has been closed");
+        }
+
+        // Counts a call as a user of the slot, unless the key is closed.
+        private void acquire()
+        {
+            for (int n = users.get(); ; n = users.get())
+            {
+                if (n == 0 || isClosed())
+                    throw new IllegalStateException("key has been closed");
+                if (users.compareAndSet(n, n + 1))
+                    return;
+            }
+        }
+
+        private void release()
+        {
+            if (users.decrementAndGet() == 0)
+                OffHeapKeyStore.this.release(slot);
+        }
+
+        public AesEcb ecb()
+        {
+            check();
+            return new AesEcb(this, id);
+        }
+
+        public AesCtr ctr(byte[] iv)
+        {
+            check();
+            return new AesCtr(this, id, iv, ForkJoinPool.commonPool());
+        }
+
+        public AesCbc cbc()
+        {
+            check();
+            return new AesCbc(this, id, ForkJoinPool.commonPool(), ParallelBlocks.DEFAULT_THRESHOLD);
+        }
+
+        public AesGcm gcm()
+        {
+            check();
+            return new AesGcm(this, id);
+        }
+
+        public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+        {
+            encryptBlocks(in, inOff, out, outOff, 1);
+        }
+
+        public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+        {
+            decryptBlocks(in, inOff, out, outOff, 1);
+        }
+
+        // The closed check is made once per call, not per block.
+        public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+        {
+            acquire();
+            try
+            {
+                for (int i = 0; i < 16 * blocks; i += 16)
+                    TTableEngine.encryptBlock(buffer, base, rounds, in, inOff + i, out, outOff + i);
+            }
+            finally
+            {
+                release();
+            }
+        }
+
+        public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+        {
+            acquire();
+            try
+            {
+                for (int i = 0; i < 16 * blocks; i += 16)
+                    TTableEngine.decryptBlock(buffer, base + DECRYPT, rounds, in, inOff + i, out, outOff + i);
+            }
+            finally
+            {
+                release();
+            }
+        }
+    }
+}
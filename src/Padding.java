@@ -0,0 +1,115 @@
+/*
+    How a message that is not a whole number of 16 byte blocks is
+    filled up before it is encrypted, and how the filler is found and
+    taken off again after decryption.
+        PKCS7 - n bytes each with the value n are added, where n is 1
+                to 16 (a whole block when the message already ends on
+                a block boundary). The exact length always comes back.
+                This is what AesOutputStream and AesEcb use.
+        ZERO  - zero bytes up to the next block boundary (none if the
+                message already ends on one). Taking it off removes
+                every zero at the end, so it only gives back the exact
+                message if the message does not end in a zero byte.
+        NONE  - nothing is added; the message must already be a whole
+                number of blocks.
+    All of them look at each byte at most once, so padding and
+    unpadding take time linear in the message length.
+ */
+public enum Padding
+{
+    PKCS7
+    {
+        public int paddedLength(int len)
+        {
+            return (len & ~15) + 16;
+        }
+
+        public int pad(byte[] b, int len)
+        {
+            int n = 16 - (len & 15);
+            for (int i = 0; i < n; i++)
+                b[len + i] = (byte) n;
+            return len + n;
+        }
+
+        public int unpaddedLength(byte[] b, int off, int len)
+        {
+            check(len);
+            if (len == 0)
+                throw new IllegalArgumentException("cipher text is empty");
+            int end = off + len;
+            int n = b[end - 1] & 0xff;
+            // Every one of the last 16 bytes is looked at, whatever n is,
+            // so a bad padding takes as long to find as a good one.
+            boolean bad = n < 1 || n > 16;
+            for (int i = 1; i <= 16; i++)
+            {
+                if (i <= n && b[end - i] != (byte) n)
+                    bad = true;
+            }
+            if (bad)
+                throw new IllegalArgumentException("bad padding (wrong key or damaged data)");
+            return len - n;
+        }
+    },
+    ZERO
+    {
+        public int paddedLength(int len)
+        {
+            return (len + 15) & ~15;
+        }
+
+        public int pad(byte[] b, int len)
+        {
+            int end = paddedLength(len);
+            for (int i = len; i < end; i++)
+                b[i] = 0;
+            return end;
+        }
+
+        public int unpaddedLength(byte[] b, int off, int len)
+        {
+            check(len);
+            while (len > 0 && b[off + len - 1] == 0)
+                len--;
+            return len;
+        }
+    },
+    NONE
+    {
+        public int paddedLength(int len)
+        {
+            check(len);
+            return len;
+        }
+
+        public int pad(byte[] b, int len)
+        {
+            return paddedLength(len);
+        }
+
+        public int unpaddedLength(byte[] b, int off, int len)
+        {
+            check(len);
+            return len;
+        }
+    };
+
+    // The length of a message of len bytes once it is padded.
+    public abstract int paddedLength(int len);
+
+    // Adds the padding after the first len bytes of b (which must have
+    // room for paddedLength(len) bytes) and returns the padded length.
+    public abstract int pad(byte[] b, int len);
+
+    // Returns the length of the message in the len decrypted bytes at
+    // b[off], without the padding. Throws IllegalArgumentException if
+    // the padding is not valid.
+    public abstract int unpaddedLength(byte[] b, int off, int len);
+
+    private static void check(int len)
+    {
+        if ((len & 15) != 0)
+            throw new IllegalArgumentException("length must be a whole number of blocks");
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Runs work over a range of independent blocks on a ForkJoinPool.
+    The range [0, count) is split in half until the pieces have at most
+    threshold blocks, and each piece is handed to body.run(from, to).
+    Pieces never overlap, so body can write its results straight into
+    its own slice of a shared output array.
+    When AesMetrics are on, the time each piece takes is added up and
+    reported with the wall time of the whole call, which gives the
+    pool utilisation.
+ */
+final class ParallelBlocks
+{
+    // Default number of blocks below which the work is not split.
+    static final int DEFAULT_THRESHOLD = 1024;
+
+    interface Range
+    {
+        void run(int from, int to);
+    }
+
+    private ParallelBlocks()
+    {
+    }
+
+    static void forEach(int count, int threshold, ForkJoinPool pool, Range body)
+    {
+        if (threshold < 1)
+            throw new IllegalArgumentException("threshold must be at least 1");
+        if (count <= threshold || pool.getParallelism() == 1)
+            body.run(0, count);
+        else if (!AesMetrics.enabled())
+            pool.invoke(new Split(0, count, threshold, body));
+        else
+        {
+            LongAdder busy = new LongAdder();
+            long start = System.nanoTime();
+            pool.invoke(new Split(0, count, threshold, (from, to) ->
+            {
+                long t = System.nanoTime();
+                body.run(from, to);
+                busy.add(System.nanoTime() - t);
+            }));
+            AesMetrics.parallel(System.nanoTime() - start, busy.sum(), pool.getParallelism());
+        }
+    }
+
+    private static final class Split extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to, threshold;
+        private final Range body;
+
+        Split(int from, int to, int threshold, Range body)
+        {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= threshold)
+            {
+                body.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Split(from, mid, threshold, body), new Split(mid, to, threshold, body));
+        }
+    }
+}
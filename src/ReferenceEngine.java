@@ -0,0 +1,35 @@
+/*
+    The ReferenceEngine runs every block through AES.cipher and
+    AES.invCipher, the original code that works on binary strings and
+    follows the NIST-AES document step by step. It is far slower than
+    the other engines and is never picked automatically; it is there
+    so the other engines can be checked against the reference, and so
+    the reference code can be used wherever an engine is taken.
+ */
+final class ReferenceEngine implements BlockCipherEngine
+{
+    private final AesKey key;
+
+    ReferenceEngine(AesKey key)
+    {
+        this.key = key;
+    }
+
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        store(AES.referenceCipher(Hex.encode(in, inOff, 16), key), out, outOff);
+    }
+
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        store(AES.referenceInvCipher(Hex.encode(in, inOff, 16), key), out, outOff);
+    }
+
+    // The state is state[row][column] and byte i of a block is row
+    // i % 4 of column i / 4.
+    private static void store(int[][] state, byte[] out, int outOff)
+    {
+        for (int i = 0; i < 16; i++)
+            out[outOff + i] = (byte) state[i & 3][i >>> 2];
+    }
+}
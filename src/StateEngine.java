@@ -0,0 +1,175 @@
+/*
+    The StateEngine runs the rounds the way AES.cipher and AES.invCipher
+    lay them out: a 4 x 4 state matrix (state[row][column]) that goes
+    through subBytes, shiftRows, mixColumns and addRoundKey one step
+    after the other.
+    The difference is that every step changes the state in place and
+    works on int values (the sBox and multiplication tables of the
+    ByteEngine) instead of binary strings, and the shifts use local
+    variables instead of new arrays. So a block is encrypted without
+    creating any objects.
+    The state is either given by the caller (encrypt(int[][]) and
+    decrypt(int[][]), used by AES.cipherInPlace) or, for the byte[]
+    methods, is a scratch state kept per thread and reused for every
+    block.
+ */
+final class StateEngine implements BlockCipherEngine
+{
+    // The scratch state of each thread. It does not depend on the key,
+    // so all StateEngines share it.
+    private static final ThreadLocal<int[][]> SCRATCH = ThreadLocal.withInitial(() -> new int[4][4]);
+
+    private final int[][][] roundKeys;
+    private final int rounds;
+
+    StateEngine(AesKey key)
+    {
+        this.roundKeys = key.roundKeys();
+        this.rounds = key.rounds();
+    }
+
+    // Same steps as AES.cipher, on the given state.
+    void encrypt(int[][] state)
+    {
+        addRoundKey(state, roundKeys[0]);
+        for (int i = 1; i < rounds; i++)
+        {
+            subBytes(state, ByteEngine.SBOX);
+            shiftRows(state);
+            mixColumns(state);
+            addRoundKey(state, roundKeys[i]);
+        }
+        subBytes(state, ByteEngine.SBOX);
+        shiftRows(state);
+        addRoundKey(state, roundKeys[rounds]);
+    }
+
+    // Same steps as AES.invCipher, on the given state.
+    void decrypt(int[][] state)
+    {
+        addRoundKey(state, roundKeys[rounds]);
+        for (int i = rounds - 1; i > 0; i--)
+        {
+            invShiftRows(state);
+            subBytes(state, ByteEngine.INV_SBOX);
+            addRoundKey(state, roundKeys[i]);
+            invMixColumns(state);
+        }
+        invShiftRows(state);
+        subBytes(state, ByteEngine.INV_SBOX);
+        addRoundKey(state, roundKeys[0]);
+    }
+
+    private static void subBytes(int[][] s, int[] box)
+    {
+        for (int[] row : s)
+        {
+            for (int j = 0; j < 4; j++)
+                row[j] = box[row[j]];
+        }
+    }
+
+    // Row i is shifted left by i, as in AES.shiftRows.
+    private static void shiftRows(int[][] s)
+    {
+        rotate(s[1], 1);
+        rotate(s[2], 2);
+        rotate(s[3], 3);
+    }
+
+    // A right shift by i is a left shift by 4 - i.
+    private static void invShiftRows(int[][] s)
+    {
+        rotate(s[1], 3);
+        rotate(s[2], 2);
+        rotate(s[3], 1);
+    }
+
+    // Left circular shift of a row by n, without a new array.
+    private static void rotate(int[] row, int n)
+    {
+        int a = row[n], b = row[(n + 1) & 3], c = row[(n + 2) & 3], d = row[(n + 3) & 3];
+        row[0] = a;
+        row[1] = b;
+        row[2] = c;
+        row[3] = d;
+    }
+
+    private static void mixColumns(int[][] s)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            int a0 = s[0][i], a1 = s[1][i], a2 = s[2][i], a3 = s[3][i];
+            s[0][i] = ByteEngine.MUL2[a0] ^ ByteEngine.MUL3[a1] ^ a2 ^ a3;
+            s[1][i] = a0 ^ ByteEngine.MUL2[a1] ^ ByteEngine.MUL3[a2] ^ a3;
+            s[2][i] = a0 ^ a1 ^ ByteEngine.MUL2[a2] ^ ByteEngine.MUL3[a3];
+            s[3][i] = ByteEngine.MUL3[a0] ^ a1 ^ a2 ^ ByteEngine.MUL2[a3];
+        }
+    }
+
+    private static void invMixColumns(int[][] s)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            int a0 = s[0][i], a1 = s[1][i], a2 = s[2][i], a3 = s[3][i];
+            s[0][i] = ByteEngine.MUL14[a0] ^ ByteEngine.MUL11[a1] ^ ByteEngine.MUL13[a2] ^ ByteEngine.MUL9[a3];
+            s[1][i] = ByteEngine.MUL9[a0] ^ ByteEngine.MUL14[a1] ^ ByteEngine.MUL11[a2] ^ ByteEngine.MUL13[a3];
+            s[2][i] = ByteEngine.MUL13[a0] ^ ByteEngine.MUL9[a1] ^ ByteEngine.MUL14[a2] ^ ByteEngine.MUL11[a3];
+            s[3][i] = ByteEngine.MUL11[a0] ^ ByteEngine.MUL13[a1] ^ ByteEngine.MUL9[a2] ^ ByteEngine.MUL14[a3];
+        }
+    }
+
+    private static void addRoundKey(int[][] s, int[][] roundKey)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            for (int j = 0; j < 4; j++)
+                s[i][j] ^= roundKey[i][j];
+        }
+    }
+
+    // Byte i of a block is row i % 4 of column i / 4.
+    private static void load(byte[] b, int off, int[][] s)
+    {
+        for (int i = 0; i < 16; i++)
+            s[i & 3][i >>> 2] = b[off + i] & 0xff;
+    }
+
+    private static void store(int[][] s, byte[] b, int off)
+    {
+        for (int i = 0; i < 16; i++)
+            b[off + i] = (byte) s[i & 3][i >>> 2];
+    }
+
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        encryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        decryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        int[][] s = SCRATCH.get();
+        for (int i = 0; i < 16 * blocks; i += 16)
+        {
+            load(in, inOff + i, s);
+            encrypt(s);
+            store(s, out, outOff + i);
+        }
+    }
+
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        int[][] s = SCRATCH.get();
+        for (int i = 0; i < 16 * blocks; i += 16)
+        {
+            load(in, inOff + i, s);
+            decrypt(s);
+            store(s, out, outOff + i);
+        }
+    }
+}
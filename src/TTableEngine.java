@@ -0,0 +1,232 @@
+import java.nio.ByteBuffer;
+
+/*
+    The TTableEngine is the 32-bit word form of the AES rounds.
+    In a normal round every output column is
+        mixColumns(subBytes(shiftRows(state))) xor roundKey
+    and every byte of the column only ever gets multiplied by a
+    fixed column of the mixColumns matrix. So for each of the four
+    rows we can store, for all 256 byte values, the whole 4 byte
+    column that byte adds to the output. Those are the tables TE0
+    to TE3. One round then costs 16 table lookups and xors, with the
+    state kept in four int locals (the same column words the
+    ByteEngine uses).
+    The inverse cipher uses TD0 to TD3 built the same way from
+    invSBox and invMixColumns. For that to work the middle round
+    keys have invMixColumns applied to them first (the "equivalent
+    inverse cipher" in the NIST-AES document, section 5.3.5), which
+    is done once when the engine is created.
+    The last round has no mixColumns, so it uses the flat sBox and
+    invSBox from the ByteEngine.
+ */
+final class TTableEngine implements BlockCipherEngine
+{
+    static final int[] TE0 = new int[256], TE1 = new int[256], TE2 = new int[256], TE3 = new int[256];
+    static final int[] TD0 = new int[256], TD1 = new int[256], TD2 = new int[256], TD3 = new int[256];
+
+    static
+    {
+        for (int x = 0; x < 256; x++)
+        {
+            int s = ByteEngine.SBOX[x];
+            // Column added by a byte in row 0: (2s, s, s, 3s).
+            int t = ByteEngine.MUL2[s] << 24 | s << 16 | s << 8 | ByteEngine.MUL3[s];
+            TE0[x] = t;
+            TE1[x] = Integer.rotateRight(t, 8);
+            TE2[x] = Integer.rotateRight(t, 16);
+            TE3[x] = Integer.rotateRight(t, 24);
+
+            int v = ByteEngine.INV_SBOX[x];
+            // Column added by a byte in row 0: (14v, 9v, 13v, 11v).
+            t = ByteEngine.MUL14[v] << 24 | ByteEngine.MUL9[v] << 16
+                    | ByteEngine.MUL13[v] << 8 | ByteEngine.MUL11[v];
+            TD0[x] = t;
+            TD1[x] = Integer.rotateRight(t, 8);
+            TD2[x] = Integer.rotateRight(t, 16);
+            TD3[x] = Integer.rotateRight(t, 24);
+        }
+    }
+
+    private final int[] w;
+    private final int[] dw;
+    private final int rounds;
+
+    TTableEngine(AesKey key)
+    {
+        this.w = key.words();
+        this.rounds = key.rounds();
+        this.dw = decryptionWords(w, rounds);
+    }
+
+    // The decryption schedule: the same words with invMixColumns
+    // applied to every round key except the first and the last.
+    static int[] decryptionWords(int[] w, int rounds)
+    {
+        int[] dw = new int[4 * (rounds + 1)];
+        for (int i = 0; i < dw.length; i++)
+            dw[i] = decryptionWord(w[i], i, rounds);
+        return dw;
+    }
+
+    // Word i of the decryption schedule, made from word i (s) of the
+    // encryption schedule. OffHeapKeyStore uses it one word at a time.
+    static int decryptionWord(int s, int i, int rounds)
+    {
+        if (i < 4 || i >= 4 * rounds)
+            return s;
+        // TD tables include invSBox, so undo it with the sBox first.
+        return TD0[ByteEngine.SBOX[s >>> 24]] ^ TD1[ByteEngine.SBOX[(s >>> 16) & 0xff]]
+                ^ TD2[ByteEngine.SBOX[(s >>> 8) & 0xff]] ^ TD3[ByteEngine.SBOX[s & 0xff]];
+    }
+
+    // The encryption words belong to the AesKey, which clears them.
+    public void destroy()
+    {
+        java.util.Arrays.fill(dw, 0);
+    }
+
+    // Encrypts the 16 bytes at in[inOff] into out[outOff].
+    // in and out may be the same array.
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        encryptBlock(w, rounds, in, inOff, out, outOff);
+    }
+
+    // Decrypts the 16 bytes at in[inOff] into out[outOff].
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        decryptBlock(dw, rounds, in, inOff, out, outOff);
+    }
+
+    // The rounds, with the encryption words w.
+    static void encryptBlock(int[] w, int rounds, byte[] in, int inOff, byte[] out, int outOff)
+    {
+        int c0 = ByteEngine.getInt(in, inOff) ^ w[0];
+        int c1 = ByteEngine.getInt(in, inOff + 4) ^ w[1];
+        int c2 = ByteEngine.getInt(in, inOff + 8) ^ w[2];
+        int c3 = ByteEngine.getInt(in, inOff + 12) ^ w[3];
+        int k = 4;
+        for (int r = 1; r < rounds; r++, k += 4)
+        {
+            int t0 = TE0[c0 >>> 24] ^ TE1[(c1 >>> 16) & 0xff] ^ TE2[(c2 >>> 8) & 0xff] ^ TE3[c3 & 0xff] ^ w[k];
+            int t1 = TE0[c1 >>> 24] ^ TE1[(c2 >>> 16) & 0xff] ^ TE2[(c3 >>> 8) & 0xff] ^ TE3[c0 & 0xff] ^ w[k + 1];
+            int t2 = TE0[c2 >>> 24] ^ TE1[(c3 >>> 16) & 0xff] ^ TE2[(c0 >>> 8) & 0xff] ^ TE3[c1 & 0xff] ^ w[k + 2];
+            int t3 = TE0[c3 >>> 24] ^ TE1[(c0 >>> 16) & 0xff] ^ TE2[(c1 >>> 8) & 0xff] ^ TE3[c2 & 0xff] ^ w[k + 3];
+            c0 = t0;
+            c1 = t1;
+            c2 = t2;
+            c3 = t3;
+        }
+        int[] s = ByteEngine.SBOX;
+        ByteEngine.putInt((s[c0 >>> 24] << 24 | s[(c1 >>> 16) & 0xff] << 16
+                | s[(c2 >>> 8) & 0xff] << 8 | s[c3 & 0xff]) ^ w[k], out, outOff);
+        ByteEngine.putInt((s[c1 >>> 24] << 24 | s[(c2 >>> 16) & 0xff] << 16
+                | s[(c3 >>> 8) & 0xff] << 8 | s[c0 & 0xff]) ^ w[k + 1], out, outOff + 4);
+        ByteEngine.putInt((s[c2 >>> 24] << 24 | s[(c3 >>> 16) & 0xff] << 16
+                | s[(c0 >>> 8) & 0xff] << 8 | s[c1 & 0xff]) ^ w[k + 2], out, outOff + 8);
+        ByteEngine.putInt((s[c3 >>> 24] << 24 | s[(c0 >>> 16) & 0xff] << 16
+                | s[(c1 >>> 8) & 0xff] << 8 | s[c2 & 0xff]) ^ w[k + 3], out, outOff + 12);
+    }
+
+    // The inverse rounds, with the decryption words dw made by
+    // decryptionWords.
+    static void decryptBlock(int[] dw, int rounds, byte[] in, int inOff, byte[] out, int outOff)
+    {
+        int k = 4 * rounds;
+        int c0 = ByteEngine.getInt(in, inOff) ^ dw[k];
+        int c1 = ByteEngine.getInt(in, inOff + 4) ^ dw[k + 1];
+        int c2 = ByteEngine.getInt(in, inOff + 8) ^ dw[k + 2];
+        int c3 = ByteEngine.getInt(in, inOff + 12) ^ dw[k + 3];
+        for (k -= 4; k > 0; k -= 4)
+        {
+            int t0 = TD0[c0 >>> 24] ^ TD1[(c3 >>> 16) & 0xff] ^ TD2[(c2 >>> 8) & 0xff] ^ TD3[c1 & 0xff] ^ dw[k];
+            int t1 = TD0[c1 >>> 24] ^ TD1[(c0 >>> 16) & 0xff] ^ TD2[(c3 >>> 8) & 0xff] ^ TD3[c2 & 0xff] ^ dw[k + 1];
+            int t2 = TD0[c2 >>> 24] ^ TD1[(c1 >>> 16) & 0xff] ^ TD2[(c0 >>> 8) & 0xff] ^ TD3[c3 & 0xff] ^ dw[k + 2];
+            int t3 = TD0[c3 >>> 24] ^ TD1[(c2 >>> 16) & 0xff] ^ TD2[(c1 >>> 8) & 0xff] ^ TD3[c0 & 0xff] ^ dw[k + 3];
+            c0 = t0;
+            c1 = t1;
+            c2 = t2;
+            c3 = t3;
+        }
+        int[] s = ByteEngine.INV_SBOX;
+        ByteEngine.putInt((s[c0 >>> 24] << 24 | s[(c3 >>> 16) & 0xff] << 16
+                | s[(c2 >>> 8) & 0xff] << 8 | s[c1 & 0xff]) ^ dw[0], out, outOff);
+        ByteEngine.putInt((s[c1 >>> 24] << 24 | s[(c0 >>> 16) & 0xff] << 16
+                | s[(c3 >>> 8) & 0xff] << 8 | s[c2 & 0xff]) ^ dw[1], out, outOff + 4);
+        ByteEngine.putInt((s[c2 >>> 24] << 24 | s[(c1 >>> 16) & 0xff] << 16
+                | s[(c0 >>> 8) & 0xff] << 8 | s[c3 & 0xff]) ^ dw[2], out, outOff + 8);
+        ByteEngine.putInt((s[c3 >>> 24] << 24 | s[(c2 >>> 16) & 0xff] << 16
+                | s[(c1 >>> 8) & 0xff] << 8 | s[c0 & 0xff]) ^ dw[3], out, outOff + 12);
+    }
+
+    /*
+        The same rounds with the round keys read from a buffer, the
+        words starting at byte k, so OffHeapKeyStore never has to copy
+        them onto the heap. Keep them in step with the int[] forms.
+     */
+    static void encryptBlock(ByteBuffer w, int k, int rounds, byte[] in, int inOff, byte[] out, int outOff)
+    {
+        int c0 = ByteEngine.getInt(in, inOff) ^ w.getInt(k);
+        int c1 = ByteEngine.getInt(in, inOff + 4) ^ w.getInt(k + 4);
+        int c2 = ByteEngine.getInt(in, inOff + 8) ^ w.getInt(k + 8);
+        int c3 = ByteEngine.getInt(in, inOff + 12) ^ w.getInt(k + 12);
+        k += 16;
+        for (int r = 1; r < rounds; r++, k += 16)
+        {
+            int t0 = TE0[c0 >>> 24] ^ TE1[(c1 >>> 16) & 0xff] ^ TE2[(c2 >>> 8) & 0xff] ^ TE3[c3 & 0xff] ^ w.getInt(k);
+            int t1 = TE0[c1 >>> 24] ^ TE1[(c2 >>> 16) & 0xff] ^ TE2[(c3 >>> 8) & 0xff] ^ TE3[c0 & 0xff]
+                    ^ w.getInt(k + 4);
+            int t2 = TE0[c2 >>> 24] ^ TE1[(c3 >>> 16) & 0xff] ^ TE2[(c0 >>> 8) & 0xff] ^ TE3[c1 & 0xff]
+                    ^ w.getInt(k + 8);
+            int t3 = TE0[c3 >>> 24] ^ TE1[(c0 >>> 16) & 0xff] ^ TE2[(c1 >>> 8) & 0xff] ^ TE3[c2 & 0xff]
+                    ^ w.getInt(k + 12);
+            c0 = t0;
+            c1 = t1;
+            c2 = t2;
+            c3 = t3;
+        }
+        int[] s = ByteEngine.SBOX;
+        ByteEngine.putInt((s[c0 >>> 24] << 24 | s[(c1 >>> 16) & 0xff] << 16
+                | s[(c2 >>> 8) & 0xff] << 8 | s[c3 & 0xff]) ^ w.getInt(k), out, outOff);
+        ByteEngine.putInt((s[c1 >>> 24] << 24 | s[(c2 >>> 16) & 0xff] << 16
+                | s[(c3 >>> 8) & 0xff] << 8 | s[c0 & 0xff]) ^ w.getInt(k + 4), out, outOff + 4);
+        ByteEngine.putInt((s[c2 >>> 24] << 24 | s[(c3 >>> 16) & 0xff] << 16
+                | s[(c0 >>> 8) & 0xff] << 8 | s[c1 & 0xff]) ^ w.getInt(k + 8), out, outOff + 8);
+        ByteEngine.putInt((s[c3 >>> 24] << 24 | s[(c0 >>> 16) & 0xff] << 16
+                | s[(c1 >>> 8) & 0xff] << 8 | s[c2 & 0xff]) ^ w.getInt(k + 12), out, outOff + 12);
+    }
+
+    // The decryption words start at byte d.
+    static void decryptBlock(ByteBuffer dw, int d, int rounds, byte[] in, int inOff, byte[] out, int outOff)
+    {
+        int k = d + 16 * rounds;
+        int c0 = ByteEngine.getInt(in, inOff) ^ dw.getInt(k);
+        int c1 = ByteEngine.getInt(in, inOff + 4) ^ dw.getInt(k + 4);
+        int c2 = ByteEngine.getInt(in, inOff + 8) ^ dw.getInt(k + 8);
+        int c3 = ByteEngine.getInt(in, inOff + 12) ^ dw.getInt(k + 12);
+        for (k -= 16; k > d; k -= 16)
+        {
+            int t0 = TD0[c0 >>> 24] ^ TD1[(c3 >>> 16) & 0xff] ^ TD2[(c2 >>> 8) & 0xff] ^ TD3[c1 & 0xff]
+                    ^ dw.getInt(k);
+            int t1 = TD0[c1 >>> 24] ^ TD1[(c0 >>> 16) & 0xff] ^ TD2[(c3 >>> 8) & 0xff] ^ TD3[c2 & 0xff]
+                    ^ dw.getInt(k + 4);
+            int t2 = TD0[c2 >>> 24] ^ TD1[(c1 >>> 16) & 0xff] ^ TD2[(c0 >>> 8) & 0xff] ^ TD3[c3 & 0xff]
+                    ^ dw.getInt(k + 8);
+            int t3 = TD0[c3 >>> 24] ^ TD1[(c2 >>> 16) & 0xff] ^ TD2[(c1 >>> 8) & 0xff] ^ TD3[c0 & 0xff]
+                    ^ dw.getInt(k + 12);
+            c0 = t0;
+            c1 = t1;
+            c2 = t2;
+            c3 = t3;
+        }
+        int[] s = ByteEngine.INV_SBOX;
+        ByteEngine.putInt((s[c0 >>> 24] << 24 | s[(c3 >>> 16) & 0xff] << 16
+                | s[(c2 >>> 8) & 0xff] << 8 | s[c1 & 0xff]) ^ dw.getInt(d), out, outOff);
+        ByteEngine.putInt((s[c1 >>> 24] << 24 | s[(c0 >>> 16) & 0xff] << 16
+                | s[(c3 >>> 8) & 0xff] << 8 | s[c2 & 0xff]) ^ dw.getInt(d + 4), out, outOff + 4);
+        ByteEngine.putInt((s[c2 >>> 24] << 24 | s[(c1 >>> 16) & 0xff] << 16
+                | s[(c0 >>> 8) & 0xff] << 8 | s[c3 & 0xff]) ^ dw.getInt(d + 8), out, outOff + 8);
+        ByteEngine.putInt((s[c3 >>> 24] << 24 | s[(c2 >>> 16) & 0xff] << 16
+                | s[(c1 >>> 8) & 0xff] << 8 | s[c0 & 0xff]) ^ dw.getInt(d + 12), out, outOff + 12);
+    }
+}
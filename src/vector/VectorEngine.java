@@ -0,0 +1,613 @@
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import static jdk.incubator.vector.VectorOperators.LSHL;
+import static jdk.incubator.vector.VectorOperators.LSHR;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+/*
+    The VectorEngine is the BitslicedEngine spread over the lanes of a
+    SIMD register with the Vector API (jdk.incubator.vector). Each long
+    lane holds 4 blocks in exactly the layout the BitslicedEngine uses,
+    so the same gates, shifts and masks apply lane by lane; with L
+    lanes (the widest the CPU has: 2 with 128 bit SSE or NEON, 4 with
+    AVX2, 8 with AVX-512) one pass of the rounds does 4L blocks.
+    Like the BitslicedEngine it uses no tables, so its running time
+    does not depend on the key or the data.
+    The state is kept in q, one row of L longs per bit. Every step
+    loads the rows it needs as vectors and stores its results back,
+    and the vector operations are written out in place rather than in
+    helper methods: a vector only stays in a register while the JIT
+    compiler inlines everything it passes through, and the Vector API
+    methods are always inlined where ordinary small methods are not.
+    The transposition into and out of the bit rows is the scalar one
+    of the BitslicedEngine.
+    The Vector API is an incubator module, so this file is compiled
+    separately with --add-modules jdk.incubator.vector (see the
+    README). Engine.VECTOR loads it by name, and falls back to the
+    BitslicedEngine when it or the module is missing.
+ */
+final class VectorEngine implements BlockCipherEngine
+{
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    // Blocks done in one pass.
+    static final int BATCH = 4 * LANES;
+
+    // Per thread, as in the BitslicedEngine.
+    private static final class Scratch
+    {
+        // 8 rows for the state and 21 for the steps in between.
+        final long[] q = new long[29 * LANES];
+        final long[] words = new long[8];
+        final byte[] partial = new byte[16 * BATCH];
+    }
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final long[] sk;
+    private final int rounds;
+
+    VectorEngine(AesKey key)
+    {
+        rounds = key.rounds();
+        sk = BitslicedEngine.roundKeys(key);
+    }
+
+    public void destroy()
+    {
+        java.util.Arrays.fill(sk, 0);
+    }
+
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        encryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        decryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        run(in, inOff, out, outOff, blocks, true);
+    }
+
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        run(in, inOff, out, outOff, blocks, false);
+    }
+
+    private void run(byte[] in, int inOff, byte[] out, int outOff, int blocks, boolean encrypt)
+    {
+        Scratch scratch = SCRATCH.get();
+        long[] q = scratch.q;
+        byte[] partial = scratch.partial;
+        for (int done = 0; done < blocks; done += BATCH)
+        {
+            int n = Math.min(BATCH, blocks - done);
+            byte[] src = in, dst = out;
+            int srcOff = inOff + 16 * done, dstOff = outOff + 16 * done;
+            if (n < BATCH)
+            {
+                System.arraycopy(in, srcOff, partial, 0, 16 * n);
+                src = dst = partial;
+                srcOff = dstOff = 0;
+            }
+            // Only the lanes that hold real blocks are moved; the others
+            // are run on whatever they held before and thrown away.
+            int lanes = (n + 3) / 4;
+            load(src, srcOff, q, scratch.words, lanes);
+            if (encrypt)
+                encrypt(q);
+            else
+                decrypt(q);
+            store(q, scratch.words, dst, dstOff, lanes);
+            if (n < BATCH)
+                System.arraycopy(partial, 0, out, outOff + 16 * done, 16 * n);
+        }
+    }
+
+    // Lane g of row b gets bit b of the 4 blocks at in[inOff + 64g].
+    private static void load(byte[] in, int inOff, long[] q, long[] words, int lanes)
+    {
+        for (int g = 0; g < lanes; g++)
+        {
+            BitslicedEngine.load(in, inOff + 64 * g, words, 0);
+            for (int b = 0; b < 8; b++)
+                q[b * LANES + g] = words[b];
+        }
+    }
+
+    private static void store(long[] q, long[] words, byte[] out, int outOff, int lanes)
+    {
+        for (int g = 0; g < lanes; g++)
+        {
+            for (int b = 0; b < 8; b++)
+                words[b] = q[b * LANES + g];
+            BitslicedEngine.store(words, 0, out, outOff + 64 * g);
+        }
+    }
+
+    private void encrypt(long[] q)
+    {
+        addRoundKey(q, 0);
+        for (int r = 1; r < rounds; r++)
+        {
+            subBytes(q);
+            shiftRows(q);
+            mixColumns(q);
+            addRoundKey(q, r);
+        }
+        subBytes(q);
+        shiftRows(q);
+        addRoundKey(q, rounds);
+    }
+
+    private void decrypt(long[] q)
+    {
+        addRoundKey(q, rounds);
+        for (int r = rounds - 1; r > 0; r--)
+        {
+            invShiftRows(q);
+            invSubBytes(q);
+            addRoundKey(q, r);
+            invMixColumns(q);
+        }
+        invShiftRows(q);
+        invSubBytes(q);
+        addRoundKey(q, 0);
+    }
+
+    // The round key is the same in every lane.
+    private void addRoundKey(long[] q, int r)
+    {
+        for (int b = 0; b < 8; b++)
+        {
+            LongVector x = LongVector.fromArray(SPECIES, q, b * LANES);
+            x.lanewise(XOR, sk[8 * r + b]).intoArray(q, b * LANES);
+        }
+    }
+
+    // The shifts and masks of BitslicedEngine.shiftRows, in every lane.
+    private static void shiftRows(long[] q)
+    {
+        for (int b = 0; b < 8; b++)
+        {
+            LongVector x = LongVector.fromArray(SPECIES, q, b * LANES);
+            x.and(BitslicedEngine.ROW0)
+                    .or(x.lanewise(LSHR, 4).and(BitslicedEngine.SR1_A))
+                    .or(x.lanewise(LSHL, 12).and(BitslicedEngine.SR1_B))
+                    .or(x.lanewise(LSHR, 8).and(BitslicedEngine.SR2_A))
+                    .or(x.lanewise(LSHL, 8).and(BitslicedEngine.SR2_B))
+                    .or(x.lanewise(LSHR, 12).and(BitslicedEngine.SR3_A))
+                    .or(x.lanewise(LSHL, 4).and(BitslicedEngine.SR3_B))
+                    .intoArray(q, b * LANES);
+        }
+    }
+
+    private static void invShiftRows(long[] q)
+    {
+        for (int b = 0; b < 8; b++)
+        {
+            LongVector x = LongVector.fromArray(SPECIES, q, b * LANES);
+            x.and(BitslicedEngine.ROW0)
+                    .or(x.lanewise(LSHL, 4).and(BitslicedEngine.ISR1_A))
+                    .or(x.lanewise(LSHR, 12).and(BitslicedEngine.ISR1_B))
+                    .or(x.lanewise(LSHR, 8).and(BitslicedEngine.SR2_A))
+                    .or(x.lanewise(LSHL, 8).and(BitslicedEngine.SR2_B))
+                    .or(x.lanewise(LSHR, 4).and(BitslicedEngine.ISR3_A))
+                    .or(x.lanewise(LSHL, 12).and(BitslicedEngine.ISR3_B))
+                    .intoArray(q, b * LANES);
+        }
+    }
+
+    /*
+        BitslicedEngine.mixColumns, as loops over the 8 bit rows. With b
+        the state rotated by one row and t = a xor b, bit i of the result
+        is
+            t(i-1) xor b(i) xor (t(i) rotated by two rows)
+        where the bit before 0 is 7, and bits 1, 3 and 4 also get t(7)
+        (the reduction by 0x11b in xTimes). b goes to rows 8 to 15 and
+        t to rows 16 to 23.
+     */
+    private static void mixColumns(long[] q)
+    {
+        for (int i = 0; i < 8; i++)
+        {
+            LongVector a = LongVector.fromArray(SPECIES, q, i * LANES);
+            LongVector b = a.lanewise(LSHR, 1).and(BitslicedEngine.ROT1_A)
+                    .or(a.lanewise(LSHL, 3).and(BitslicedEngine.ROT1_B));
+            b.intoArray(q, (8 + i) * LANES);
+            a.lanewise(XOR, b).intoArray(q, (16 + i) * LANES);
+        }
+        LongVector t7 = LongVector.fromArray(SPECIES, q, 23 * LANES);
+        for (int i = 0; i < 8; i++)
+        {
+            LongVector t = LongVector.fromArray(SPECIES, q, (16 + i) * LANES);
+            LongVector s = t.lanewise(LSHR, 2).and(BitslicedEngine.ROT2_A)
+                    .or(t.lanewise(LSHL, 2).and(BitslicedEngine.ROT2_B))
+                    .lanewise(XOR, LongVector.fromArray(SPECIES, q, (8 + i) * LANES))
+                    .lanewise(XOR, LongVector.fromArray(SPECIES, q, (16 + ((i + 7) & 7)) * LANES));
+            if (i == 1 || i == 3 || i == 4)
+                s = s.lanewise(XOR, t7);
+            s.intoArray(q, i * LANES);
+        }
+    }
+
+    /*
+        BitslicedEngine.invMixColumns as loops: with u = a xor (a rotated
+        by two rows), bit i of the state gets u(i-2), bits 1, 3 and 4
+        also get u(6) and bits 2, 4 and 5 also get u(7) (that is, 4u
+        with the reduction). u goes to rows 8 to 15.
+     */
+    private static void invMixColumns(long[] q)
+    {
+        for (int i = 0; i < 8; i++)
+        {
+            LongVector a = LongVector.fromArray(SPECIES, q, i * LANES);
+            a.lanewise(LSHR, 2).and(BitslicedEngine.ROT2_A)
+                    .or(a.lanewise(LSHL, 2).and(BitslicedEngine.ROT2_B))
+                    .lanewise(XOR, a)
+                    .intoArray(q, (8 + i) * LANES);
+        }
+        LongVector u6 = LongVector.fromArray(SPECIES, q, 14 * LANES);
+        LongVector u7 = LongVector.fromArray(SPECIES, q, 15 * LANES);
+        for (int i = 0; i < 8; i++)
+        {
+            LongVector s = LongVector.fromArray(SPECIES, q, i * LANES)
+                    .lanewise(XOR, LongVector.fromArray(SPECIES, q, (8 + ((i + 6) & 7)) * LANES));
+            if (i == 1 || i == 3 || i == 4)
+                s = s.lanewise(XOR, u6);
+            if (i == 2 || i == 4 || i == 5)
+                s = s.lanewise(XOR, u7);
+            s.intoArray(q, i * LANES);
+        }
+        mixColumns(q);
+    }
+
+    /*
+        The Boyar and Peralta circuit of BitslicedEngine.subBytes, gate
+        for gate. It is cut into parts of at most 24 gates, which hand
+        their results on through rows 8 to 28 of q: the JIT compiler
+        limits how big one compiled method may grow, and any vector
+        operation left out of it would create an object.
+     */
+    private static void subBytes(long[] q)
+    {
+        sBox0(q);
+        sBox1(q);
+        sBox2(q);
+        sBox3(q);
+        sBox4(q);
+        sBox5(q);
+    }
+
+    private static void sBox0(long[] q)
+    {
+        LongVector x3 = LongVector.fromArray(SPECIES, q, 4 * LANES);
+        LongVector x5 = LongVector.fromArray(SPECIES, q, 2 * LANES);
+        LongVector x0 = LongVector.fromArray(SPECIES, q, 7 * LANES);
+        LongVector x6 = LongVector.fromArray(SPECIES, q, LANES);
+        LongVector x1 = LongVector.fromArray(SPECIES, q, 6 * LANES);
+        LongVector x2 = LongVector.fromArray(SPECIES, q, 5 * LANES);
+        LongVector x7 = LongVector.fromArray(SPECIES, q, 0);
+        LongVector x4 = LongVector.fromArray(SPECIES, q, 3 * LANES);
+
+        // Top linear transformation.
+        LongVector y14 = x3.lanewise(XOR, x5);
+        LongVector y13 = x0.lanewise(XOR, x6);
+        LongVector y9 = x0.lanewise(XOR, x3);
+        LongVector y8 = x0.lanewise(XOR, x5);
+        LongVector t0 = x1.lanewise(XOR, x2);
+        LongVector y1 = t0.lanewise(XOR, x7);
+        LongVector y4 = y1.lanewise(XOR, x3);
+        LongVector y12 = y13.lanewise(XOR, y14);
+        LongVector y2 = y1.lanewise(XOR, x0);
+        LongVector y5 = y1.lanewise(XOR, x6);
+        LongVector y3 = y5.lanewise(XOR, y8);
+        LongVector t1 = x4.lanewise(XOR, y12);
+        LongVector y15 = t1.lanewise(XOR, x5);
+        LongVector y20 = t1.lanewise(XOR, x1);
+        LongVector y6 = y15.lanewise(XOR, x7);
+        LongVector y10 = y15.lanewise(XOR, t0);
+        LongVector y11 = y20.lanewise(XOR, y9);
+        LongVector y7 = x7.lanewise(XOR, y11);
+        LongVector y17 = y10.lanewise(XOR, y11);
+        LongVector y19 = y10.lanewise(XOR, y8);
+        LongVector y16 = t0.lanewise(XOR, y11);
+        LongVector y21 = y13.lanewise(XOR, y16);
+        LongVector y18 = x0.lanewise(XOR, y16);
+        y14.intoArray(q, 8 * LANES);
+        y13.intoArray(q, 9 * LANES);
+        y9.intoArray(q, 10 * LANES);
+        y8.intoArray(q, 11 * LANES);
+        y1.intoArray(q, 12 * LANES);
+        y4.intoArray(q, 13 * LANES);
+        y12.intoArray(q, 14 * LANES);
+        y2.intoArray(q, 15 * LANES);
+        y5.intoArray(q, 16 * LANES);
+        y3.intoArray(q, 17 * LANES);
+        y15.intoArray(q, 18 * LANES);
+        y20.intoArray(q, 19 * LANES);
+        y6.intoArray(q, 20 * LANES);
+        y10.intoArray(q, 21 * LANES);
+        y11.intoArray(q, 22 * LANES);
+        y7.intoArray(q, 23 * LANES);
+        y17.intoArray(q, 24 * LANES);
+        y19.intoArray(q, 25 * LANES);
+        y16.intoArray(q, 26 * LANES);
+        y21.intoArray(q, 27 * LANES);
+        y18.intoArray(q, 28 * LANES);
+    }
+
+    private static void sBox1(long[] q)
+    {
+        LongVector y12 = LongVector.fromArray(SPECIES, q, 14 * LANES);
+        LongVector y15 = LongVector.fromArray(SPECIES, q, 18 * LANES);
+        LongVector y3 = LongVector.fromArray(SPECIES, q, 17 * LANES);
+        LongVector y6 = LongVector.fromArray(SPECIES, q, 20 * LANES);
+        LongVector y4 = LongVector.fromArray(SPECIES, q, 13 * LANES);
+        LongVector x7 = LongVector.fromArray(SPECIES, q, 0);
+        LongVector y13 = LongVector.fromArray(SPECIES, q, 9 * LANES);
+        LongVector y16 = LongVector.fromArray(SPECIES, q, 26 * LANES);
+        LongVector y5 = LongVector.fromArray(SPECIES, q, 16 * LANES);
+        LongVector y1 = LongVector.fromArray(SPECIES, q, 12 * LANES);
+        LongVector y2 = LongVector.fromArray(SPECIES, q, 15 * LANES);
+        LongVector y7 = LongVector.fromArray(SPECIES, q, 23 * LANES);
+        LongVector y9 = LongVector.fromArray(SPECIES, q, 10 * LANES);
+        LongVector y11 = LongVector.fromArray(SPECIES, q, 22 * LANES);
+        LongVector y14 = LongVector.fromArray(SPECIES, q, 8 * LANES);
+        LongVector y17 = LongVector.fromArray(SPECIES, q, 24 * LANES);
+        LongVector y8 = LongVector.fromArray(SPECIES, q, 11 * LANES);
+        LongVector y10 = LongVector.fromArray(SPECIES, q, 21 * LANES);
+        LongVector y20 = LongVector.fromArray(SPECIES, q, 19 * LANES);
+        LongVector y19 = LongVector.fromArray(SPECIES, q, 25 * LANES);
+        LongVector y21 = LongVector.fromArray(SPECIES, q, 27 * LANES);
+        LongVector y18 = LongVector.fromArray(SPECIES, q, 28 * LANES);
+
+        // Non-linear section (inversion in GF(2^8)).
+        LongVector t2 = y12.and(y15);
+        LongVector t3 = y3.and(y6);
+        LongVector t4 = t3.lanewise(XOR, t2);
+        LongVector t5 = y4.and(x7);
+        LongVector t6 = t5.lanewise(XOR, t2);
+        LongVector t7 = y13.and(y16);
+        LongVector t8 = y5.and(y1);
+        LongVector t9 = t8.lanewise(XOR, t7);
+        LongVector t10 = y2.and(y7);
+        LongVector t11 = t10.lanewise(XOR, t7);
+        LongVector t12 = y9.and(y11);
+        LongVector t13 = y14.and(y17);
+        LongVector t14 = t13.lanewise(XOR, t12);
+        LongVector t15 = y8.and(y10);
+        LongVector t16 = t15.lanewise(XOR, t12);
+        LongVector t17 = t4.lanewise(XOR, t14);
+        LongVector t18 = t6.lanewise(XOR, t16);
+        LongVector t19 = t9.lanewise(XOR, t14);
+        LongVector t20 = t11.lanewise(XOR, t16);
+        LongVector t21 = t17.lanewise(XOR, y20);
+        LongVector t22 = t18.lanewise(XOR, y19);
+        LongVector t23 = t19.lanewise(XOR, y21);
+        LongVector t24 = t20.lanewise(XOR, y18);
+        t21.intoArray(q, 19 * LANES);
+        t22.intoArray(q, 25 * LANES);
+        t23.intoArray(q, 27 * LANES);
+        t24.intoArray(q, 28 * LANES);
+    }
+
+    private static void sBox2(long[] q)
+    {
+        LongVector t21 = LongVector.fromArray(SPECIES, q, 19 * LANES);
+        LongVector t22 = LongVector.fromArray(SPECIES, q, 25 * LANES);
+        LongVector t23 = LongVector.fromArray(SPECIES, q, 27 * LANES);
+        LongVector t24 = LongVector.fromArray(SPECIES, q, 28 * LANES);
+        LongVector t25 = t21.lanewise(XOR, t22);
+        LongVector t26 = t21.and(t23);
+        LongVector t27 = t24.lanewise(XOR, t26);
+        LongVector t28 = t25.and(t27);
+        LongVector t29 = t28.lanewise(XOR, t22);
+        LongVector t30 = t23.lanewise(XOR, t24);
+        LongVector t31 = t22.lanewise(XOR, t26);
+        LongVector t32 = t31.and(t30);
+        LongVector t33 = t32.lanewise(XOR, t24);
+        LongVector t34 = t23.lanewise(XOR, t33);
+        LongVector t35 = t27.lanewise(XOR, t33);
+        LongVector t36 = t24.and(t35);
+        LongVector t37 = t36.lanewise(XOR, t34);
+        LongVector t38 = t27.lanewise(XOR, t36);
+        LongVector t39 = t29.and(t38);
+        LongVector t40 = t25.lanewise(XOR, t39);
+        t29.intoArray(q, 19 * LANES);
+        t33.intoArray(q, 25 * LANES);
+        t37.intoArray(q, 27 * LANES);
+        t40.intoArray(q, 28 * LANES);
+    }
+
+    private static void sBox3(long[] q)
+    {
+        LongVector t40 = LongVector.fromArray(SPECIES, q, 28 * LANES);
+        LongVector t37 = LongVector.fromArray(SPECIES, q, 27 * LANES);
+        LongVector t29 = LongVector.fromArray(SPECIES, q, 19 * LANES);
+        LongVector t33 = LongVector.fromArray(SPECIES, q, 25 * LANES);
+        LongVector y15 = LongVector.fromArray(SPECIES, q, 18 * LANES);
+        LongVector y6 = LongVector.fromArray(SPECIES, q, 20 * LANES);
+        LongVector x7 = LongVector.fromArray(SPECIES, q, 0);
+        LongVector y16 = LongVector.fromArray(SPECIES, q, 26 * LANES);
+        LongVector y1 = LongVector.fromArray(SPECIES, q, 12 * LANES);
+        LongVector y7 = LongVector.fromArray(SPECIES, q, 23 * LANES);
+        LongVector y11 = LongVector.fromArray(SPECIES, q, 22 * LANES);
+        LongVector y17 = LongVector.fromArray(SPECIES, q, 24 * LANES);
+        LongVector y10 = LongVector.fromArray(SPECIES, q, 21 * LANES);
+        LongVector y12 = LongVector.fromArray(SPECIES, q, 14 * LANES);
+        LongVector y3 = LongVector.fromArray(SPECIES, q, 17 * LANES);
+        LongVector y4 = LongVector.fromArray(SPECIES, q, 13 * LANES);
+        LongVector y13 = LongVector.fromArray(SPECIES, q, 9 * LANES);
+        LongVector y5 = LongVector.fromArray(SPECIES, q, 16 * LANES);
+        LongVector y2 = LongVector.fromArray(SPECIES, q, 15 * LANES);
+        LongVector y9 = LongVector.fromArray(SPECIES, q, 10 * LANES);
+        LongVector y14 = LongVector.fromArray(SPECIES, q, 8 * LANES);
+        LongVector y8 = LongVector.fromArray(SPECIES, q, 11 * LANES);
+        LongVector t41 = t40.lanewise(XOR, t37);
+        LongVector t42 = t29.lanewise(XOR, t33);
+        LongVector t43 = t29.lanewise(XOR, t40);
+        LongVector t44 = t33.lanewise(XOR, t37);
+        LongVector t45 = t42.lanewise(XOR, t41);
+        LongVector z0 = t44.and(y15);
+        LongVector z1 = t37.and(y6);
+        LongVector z2 = t33.and(x7);
+        LongVector z3 = t43.and(y16);
+        LongVector z4 = t40.and(y1);
+        LongVector z5 = t29.and(y7);
+        LongVector z6 = t42.and(y11);
+        LongVector z7 = t45.and(y17);
+        LongVector z8 = t41.and(y10);
+        LongVector z9 = t44.and(y12);
+        LongVector z10 = t37.and(y3);
+        LongVector z11 = t33.and(y4);
+        LongVector z12 = t43.and(y13);
+        LongVector z13 = t40.and(y5);
+        LongVector z14 = t29.and(y2);
+        LongVector z15 = t42.and(y9);
+        LongVector z16 = t45.and(y14);
+        LongVector z17 = t41.and(y8);
+        z0.intoArray(q, 8 * LANES);
+        z1.intoArray(q, 9 * LANES);
+        z2.intoArray(q, 10 * LANES);
+        z3.intoArray(q, 11 * LANES);
+        z4.intoArray(q, 12 * LANES);
+        z5.intoArray(q, 13 * LANES);
+        z6.intoArray(q, 14 * LANES);
+        z7.intoArray(q, 15 * LANES);
+        z8.intoArray(q, 16 * LANES);
+        z9.intoArray(q, 17 * LANES);
+        z10.intoArray(q, 18 * LANES);
+        z11.intoArray(q, 19 * LANES);
+        z12.intoArray(q, 20 * LANES);
+        z13.intoArray(q, 21 * LANES);
+        z14.intoArray(q, 22 * LANES);
+        z15.intoArray(q, 23 * LANES);
+        z16.intoArray(q, 24 * LANES);
+        z17.intoArray(q, 25 * LANES);
+    }
+
+    private static void sBox4(long[] q)
+    {
+        LongVector z15 = LongVector.fromArray(SPECIES, q, 23 * LANES);
+        LongVector z16 = LongVector.fromArray(SPECIES, q, 24 * LANES);
+        LongVector z10 = LongVector.fromArray(SPECIES, q, 18 * LANES);
+        LongVector z11 = LongVector.fromArray(SPECIES, q, 19 * LANES);
+        LongVector z5 = LongVector.fromArray(SPECIES, q, 13 * LANES);
+        LongVector z13 = LongVector.fromArray(SPECIES, q, 21 * LANES);
+        LongVector z9 = LongVector.fromArray(SPECIES, q, 17 * LANES);
+        LongVector z2 = LongVector.fromArray(SPECIES, q, 10 * LANES);
+        LongVector z12 = LongVector.fromArray(SPECIES, q, 20 * LANES);
+        LongVector z7 = LongVector.fromArray(SPECIES, q, 15 * LANES);
+        LongVector z8 = LongVector.fromArray(SPECIES, q, 16 * LANES);
+        LongVector z0 = LongVector.fromArray(SPECIES, q, 8 * LANES);
+        LongVector z3 = LongVector.fromArray(SPECIES, q, 11 * LANES);
+        LongVector z6 = LongVector.fromArray(SPECIES, q, 14 * LANES);
+        LongVector z17 = LongVector.fromArray(SPECIES, q, 25 * LANES);
+        LongVector z4 = LongVector.fromArray(SPECIES, q, 12 * LANES);
+
+        // Bottom linear transformation (includes the affine step).
+        LongVector t46 = z15.lanewise(XOR, z16);
+        LongVector t47 = z10.lanewise(XOR, z11);
+        LongVector t48 = z5.lanewise(XOR, z13);
+        LongVector t49 = z9.lanewise(XOR, z10);
+        LongVector t50 = z2.lanewise(XOR, z12);
+        LongVector t51 = z2.lanewise(XOR, z5);
+        LongVector t52 = z7.lanewise(XOR, z8);
+        LongVector t53 = z0.lanewise(XOR, z3);
+        LongVector t54 = z6.lanewise(XOR, z7);
+        LongVector t55 = z16.lanewise(XOR, z17);
+        LongVector t56 = z12.lanewise(XOR, t48);
+        LongVector t57 = t50.lanewise(XOR, t53);
+        LongVector t58 = z4.lanewise(XOR, t46);
+        LongVector t59 = z3.lanewise(XOR, t54);
+        LongVector t60 = t46.lanewise(XOR, t57);
+        t47.intoArray(q, 8 * LANES);
+        t48.intoArray(q, 10 * LANES);
+        t49.intoArray(q, 11 * LANES);
+        t51.intoArray(q, 13 * LANES);
+        t52.intoArray(q, 14 * LANES);
+        t53.intoArray(q, 15 * LANES);
+        t55.intoArray(q, 16 * LANES);
+        t56.intoArray(q, 17 * LANES);
+        t57.intoArray(q, 18 * LANES);
+        t58.intoArray(q, 19 * LANES);
+        t59.intoArray(q, 20 * LANES);
+        t60.intoArray(q, 21 * LANES);
+    }
+
+    private static void sBox5(long[] q)
+    {
+        LongVector z14 = LongVector.fromArray(SPECIES, q, 22 * LANES);
+        LongVector t57 = LongVector.fromArray(SPECIES, q, 18 * LANES);
+        LongVector t52 = LongVector.fromArray(SPECIES, q, 14 * LANES);
+        LongVector t58 = LongVector.fromArray(SPECIES, q, 19 * LANES);
+        LongVector t49 = LongVector.fromArray(SPECIES, q, 11 * LANES);
+        LongVector z4 = LongVector.fromArray(SPECIES, q, 12 * LANES);
+        LongVector t59 = LongVector.fromArray(SPECIES, q, 20 * LANES);
+        LongVector z1 = LongVector.fromArray(SPECIES, q, 9 * LANES);
+        LongVector t56 = LongVector.fromArray(SPECIES, q, 17 * LANES);
+        LongVector t48 = LongVector.fromArray(SPECIES, q, 10 * LANES);
+        LongVector t60 = LongVector.fromArray(SPECIES, q, 21 * LANES);
+        LongVector t53 = LongVector.fromArray(SPECIES, q, 15 * LANES);
+        LongVector t51 = LongVector.fromArray(SPECIES, q, 13 * LANES);
+        LongVector t47 = LongVector.fromArray(SPECIES, q, 8 * LANES);
+        LongVector t55 = LongVector.fromArray(SPECIES, q, 16 * LANES);
+        LongVector t61 = z14.lanewise(XOR, t57);
+        LongVector t62 = t52.lanewise(XOR, t58);
+        LongVector t63 = t49.lanewise(XOR, t58);
+        LongVector t64 = z4.lanewise(XOR, t59);
+        LongVector t65 = t61.lanewise(XOR, t62);
+        LongVector t66 = z1.lanewise(XOR, t63);
+        LongVector s0 = t59.lanewise(XOR, t63);
+        LongVector s6 = t56.lanewise(XOR, t62.not());
+        LongVector s7 = t48.lanewise(XOR, t60.not());
+        LongVector t67 = t64.lanewise(XOR, t65);
+        LongVector s3 = t53.lanewise(XOR, t66);
+        LongVector s4 = t51.lanewise(XOR, t66);
+        LongVector s5 = t47.lanewise(XOR, t65);
+        LongVector s1 = t64.lanewise(XOR, s3.not());
+        LongVector s2 = t55.lanewise(XOR, t67.not());
+        s0.intoArray(q, 7 * LANES);
+        s1.intoArray(q, 6 * LANES);
+        s2.intoArray(q, 5 * LANES);
+        s3.intoArray(q, 4 * LANES);
+        s4.intoArray(q, 3 * LANES);
+        s5.intoArray(q, 2 * LANES);
+        s6.intoArray(q, LANES);
+        s7.intoArray(q, 0);
+    }
+
+    // See BitslicedEngine.invSubBytes.
+    private static void invSubBytes(long[] q)
+    {
+        inverseAffine(q);
+        subBytes(q);
+        inverseAffine(q);
+    }
+
+    // Bit i becomes x(i+2) xor x(i+5) xor x(i+7), with x = q xor 0x63.
+    private static void inverseAffine(long[] q)
+    {
+        LongVector q0 = LongVector.fromArray(SPECIES, q, 0).not();
+        LongVector q1 = LongVector.fromArray(SPECIES, q, LANES).not();
+        LongVector q2 = LongVector.fromArray(SPECIES, q, 2 * LANES);
+        LongVector q3 = LongVector.fromArray(SPECIES, q, 3 * LANES);
+        LongVector q4 = LongVector.fromArray(SPECIES, q, 4 * LANES);
+        LongVector q5 = LongVector.fromArray(SPECIES, q, 5 * LANES).not();
+        LongVector q6 = LongVector.fromArray(SPECIES, q, 6 * LANES).not();
+        LongVector q7 = LongVector.fromArray(SPECIES, q, 7 * LANES);
+        q1.lanewise(XOR, q4).lanewise(XOR, q6).intoArray(q, 7 * LANES);
+        q0.lanewise(XOR, q3).lanewise(XOR, q5).intoArray(q, 6 * LANES);
+        q7.lanewise(XOR, q2).lanewise(XOR, q4).intoArray(q, 5 * LANES);
+        q6.lanewise(XOR, q1).lanewise(XOR, q3).intoArray(q, 4 * LANES);
+        q5.lanewise(XOR, q0).lanewise(XOR, q2).intoArray(q, 3 * LANES);
+        q4.lanewise(XOR, q7).lanewise(XOR, q1).intoArray(q, 2 * LANES);
+        q3.lanewise(XOR, q6).lanewise(XOR, q0).intoArray(q, LANES);
+        q2.lanewise(XOR, q5).lanewise(XOR, q7).intoArray(q, 0);
+    }
+}